@@ -13,6 +13,7 @@
       system: let
         pkgs = import nixpkgs {
           inherit system;
+          config.allowUnfreePredicate = pkg: nixpkgs.lib.getName pkg == "graalvm-oracle";
           overlays = [
             (_: _: {
               jre = graalvmDrv;
@@ -21,38 +22,63 @@
           ];
         };
         graalvmDrv = pkgs.graalvmPackages.graalvm-ce-musl;
+        # profile-guided optimization is only in oracle graalvm, which is unfree, so it's only used
+        # for the images that need it.
+        graalvmOracle = pkgs.graalvmPackages.graalvm-oracle.override {useMusl = true;};
+        inherit (pkgs) lib;
 
         generate-grammar-classes = (pkgs.callPackage
           ./hack/generate-grammar-classes.nix {}) [
           {
             name = "Expr";
-            imports = ["java.util.List" "java.util.Optional"];
+            imports = ["java.util.List"];
             records = {
               Logical = "Expr left, Token operator, Expr right";
-              Binary = "Expr left, Token operator, Expr right";
-              Unary = "Token operator, Expr right";
+              # the type `Types` found the operands always have
+              Binary = {
+                fields = "Expr left, Token operator, Expr right";
+                cache = ["Types.Type operands = Types.Type.ANY"];
+              };
+              Unary = {
+                fields = "Token operator, Expr right";
+                cache = ["Types.Type operand = Types.Type.ANY"];
+              };
               Grouping = "Expr expression";
               Literal = "Object value";
               If = "Expr condition, Expr first, Expr second";
-              Variable = "Token name";
-              Assign = "Token name, Expr value";
+              # the scope distance the resolver found (-1 for globals) and the global's slot
+              Variable = {
+                fields = "Token name";
+                cache = ["int depth = -1" "final Globals.Slot global = new Globals.Slot()"];
+              };
+              Assign = {
+                fields = "Token name, Expr value";
+                cache = ["int depth = -1" "final Globals.Slot global = new Globals.Slot()"];
+              };
               Call = "Expr callee, Token paren, List<Expr> arguments";
-              Function = "List<Token> params, Stmt.Block body";
+              Increment = "Expr.Assign assign, int depth, double delta";
+              Compare = "Expr.Binary binary, int leftDepth, int rightDepth";
+              Invariant = "Expr expression, Optimizer.Cell cell, List<Expr.Variable> callees";
+              Function = "List<Token> params, Stmt.Block body, LazyBody lazy";
+              Probed = "Expr expression, Probe probe";
             };
           }
           {
             name = "Stmt";
-            imports = ["java.util.List" "java.util.Optional"];
+            imports = ["java.util.List"];
             records = {
               Block = "List<Stmt> statements, boolean enclosedInLoop";
               Expression = "Expr expression";
               Print = "Expr expression";
-              Var = "Token name, Optional<Expr> initializer";
-              If = " Expr condition, Stmt.Block thenBranch, Optional<Stmt.Block> elseBranch";
+              Var = "Token name, Expr initializer";
+              If = "Expr condition, Stmt.Block thenBranch, Stmt.Block elseBranch";
               While = "Expr condition, Stmt.Block body";
+              Hoisted = "Stmt loop, List<Optimizer.Cell> cells";
+              CountedLoop = "Stmt.While loop, Expr.Compare condition, Stmt.Block body, Stmt.Expression step";
               Break = "";
-              Return = "Token keyword, Optional<Expr> value";
+              Return = "Token keyword, Expr value";
               Function = "Token name, Expr.Function definition";
+              Probed = "Stmt statement, Probe probe";
             };
           }
         ];
@@ -60,10 +86,54 @@
         pname = "jlox";
         version = "0.0.0-dev";
         mainClass = "com.craftinginterpreters.lox.Lox";
-        drv = pkgs.buildGraalvmNativeImage {
-          inherit pname version graalvmDrv;
-          src = "${jar}/share/java/${pname}.jar";
-          extraNativeImageBuildArgs = ["--static" "--libc=musl" "-march=native"];
+        native-image = {
+          name,
+          graalvm,
+          extraArgs ? [],
+        }:
+          pkgs.buildGraalvmNativeImage {
+            inherit version;
+            pname = name;
+            graalvmDrv = graalvm;
+            executable = pname;
+            src = "${jar}/share/java/${pname}.jar";
+            extraNativeImageBuildArgs = ["--static" "--libc=musl" "-march=native"] ++ extraArgs;
+            meta.mainProgram = pname;
+          };
+        drv = native-image {
+          name = pname;
+          graalvm = graalvmDrv;
+        };
+
+        # the pgo image is built from what an instrumented image records running every script of
+        # `hack/corpus` in every mode, a profile per run.
+        corpus = ./hack/corpus;
+        runs =
+          lib.concatMap (script:
+            map (mode: {
+              inherit script mode;
+              profile = "${lib.removeSuffix ".lox" script}${mode}.iprof";
+            }) ["" "--fused" "--lazy"])
+          (builtins.filter (lib.hasSuffix ".lox") (builtins.attrNames (builtins.readDir corpus)));
+        instrumented = native-image {
+          name = "${pname}-instrumented";
+          graalvm = graalvmOracle;
+          extraArgs = ["--pgo-instrument"];
+        };
+        profiles = pkgs.runCommand "${pname}-profiles" {} (''
+            mkdir $out
+          ''
+          + lib.concatMapStrings (run: ''
+            ${lib.getExe instrumented} -XX:ProfilesDumpFile=$out/${run.profile} \
+              ${run.mode} ${corpus}/${run.script} > /dev/null
+          '')
+          runs);
+        pgo = native-image {
+          name = "${pname}-pgo";
+          graalvm = graalvmOracle;
+          extraArgs = [
+            "--pgo=${lib.concatMapStringsSep "," (run: "${profiles}/${run.profile}") runs}"
+          ];
         };
         jar = pkgs.stdenv.mkDerivation {
           inherit pname version;
@@ -86,7 +156,7 @@
           installPhase = ''
             mkdir -p $out/bin
             cat <<EOF > $out/bin/${pname}
-            #!usr/bin/env sh
+            #!/usr/bin/env sh
             JAVA_HOME=${pkgs.jre} exec ${pkgs.jre}/bin/java -jar $out/share/java/${pname}.jar "\$@"
             EOF
             chmod +x $out/bin/${pname}
@@ -98,7 +168,16 @@
           inherit generate-grammar-classes;
           default = self.packages.${system}.native;
           native = drv;
+          native-pgo = pgo;
           jvm = jar;
+          compare-builds = pkgs.callPackage ./hack/compare-builds.nix {} {
+            inherit corpus;
+            builds = {
+              jvm = jar;
+              native = drv;
+              native-pgo = pgo;
+            };
+          };
         };
 
         devShell = pkgs.mkShell {
@@ -0,0 +1,44 @@
+{
+  lib,
+  writeText,
+  writeShellApplication,
+  coreutils,
+}: {
+  builds,
+  corpus,
+}: let
+  # startup is how long a script with nothing in it takes, throughput is every script of the
+  # corpus. each is the fastest of `RUNS` runs (5 by default), in milliseconds.
+  empty = writeText "empty.lox" "";
+in
+  writeShellApplication {
+    name = "compare-builds";
+    runtimeInputs = [coreutils];
+    text = ''
+      runs=''${RUNS:-5}
+
+      fastest() {
+        local best=""
+        for _ in $(seq "$runs"); do
+          local start
+          start=$(date +%s%N)
+          "$@" > /dev/null
+          local elapsed=$((($(date +%s%N) - start) / 1000000))
+          if [[ -z $best || $elapsed -lt $best ]]; then best=$elapsed; fi
+        done
+        echo "$best"
+      }
+
+      printf '%-12s %10s' build startup
+      for script in ${corpus}/*.lox; do printf ' %14s' "$(basename "$script")"; done
+      printf '\n'
+      ${lib.concatMapAttrsStringSep "\n" (name: build: ''
+          printf '%-12s %8sms' ${name} "$(fastest ${lib.getExe build} ${empty})"
+          for script in ${corpus}/*.lox; do
+            printf ' %12sms' "$(fastest ${lib.getExe build} "$script")"
+          done
+          printf '\n'
+        '')
+        builds}
+    '';
+  }
@@ -5,6 +5,54 @@
   bash,
   google-java-format,
 }: classes: let
+  # a node is either its fields, "Type name, Type name", or an attrset of `fields` and `cache`:
+  # declarations of mutable fields the interpreter fills in as it goes, which aren't part of
+  # what the node is made of. a type can't have a comma in it. absent children are null.
+  fields-of = node:
+    if builtins.isString node
+    then node
+    else node.fields or "";
+  cache-of = node:
+    if builtins.isString node
+    then []
+    else node.cache or [];
+
+  parse-fields = fields:
+    map (field: let
+      parts = builtins.match "[[:space:]]*(.*[^[:space:]])[[:space:]]+([[:alnum:]_]+)[[:space:]]*" field;
+    in {
+      type = builtins.elemAt parts 0;
+      name = builtins.elemAt parts 1;
+    }) (builtins.filter (field: builtins.match "[[:space:]]*" field == null)
+      (lib.splitString "," fields));
+
+  # nodes are compared by identity, a tree is never equal to anything but itself. that's what
+  # every side table keyed by nodes wants, and it keeps hashing a node from walking its subtree.
+  gen-node = name: node: interface: let
+    fields = parse-fields (fields-of node);
+  in ''
+    final class ${name} implements ${interface} {
+      ${lib.concatMapStringsSep "\n" (f: "private final ${f.type} ${f.name};") fields}
+
+      ${lib.concatMapStringsSep "\n" (c: "${c};") (cache-of node)}
+
+      ${name}(${lib.concatMapStringsSep ", " (f: "${f.type} ${f.name}") fields}) {
+        ${lib.concatMapStringsSep "\n" (f: "this.${f.name} = ${f.name};") fields}
+      }
+
+      ${lib.concatMapStringsSep "\n" (f: ''
+        public ${f.type} ${f.name}() {
+          return ${f.name};
+        }
+      '') fields}
+
+      @Override
+      public <R> R accept(Visitor<R> visitor) {
+        return visitor.visit${name}${interface}(this);
+      }
+    }
+  '';
+
   gen-class = {
     name,
     records,
@@ -19,20 +67,12 @@
           abstract <R> R accept(Visitor<R> visitor);
 
           interface Visitor<R> { // extends Grammar.Visitor<R>''
-      (lib.concatMapAttrsStringSep "\n" (record: _fields: ''
+      (lib.concatMapAttrsStringSep "\n" (record: _node: ''
           R visit${record}${name}(${record} ${lib.toLower name});
         '')
         records)
       "}"
-      (lib.concatMapAttrsStringSep "\n" (record: fields: ''
-          record ${record}(${fields}) implements ${name} {
-            @Override
-            public <R> R accept(Visitor<R> visitor) {
-              return visitor.visit${record}${name}(this);
-            }
-          }
-        '')
-        records)
+      (lib.concatMapAttrsStringSep "\n" (record: node: gen-node record node name) records)
       "}"
     ])}'';
 in
@@ -0,0 +1,124 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// `--profile-alloc`: what the interpreter allocated on the script's behalf, by the line of the
+// node that made it allocate, with the same rough sizes `Heap` charges. boxed numbers are
+// counted where arithmetic hands one back to the interpreter, arithmetic `Types` keeps unboxed
+// and loops running from a trace mostly don't allocate at all. a profile belongs to one
+// interpreter, the workers of `parallelFor` record into their own and `join` them back.
+final class AllocationProfile {
+  private static final int REPORTED_LINES = 20;
+
+  enum Kind {
+    NUMBER("numbers"),
+    STRING("strings"),
+    ENVIRONMENT("environments"),
+    VARIABLE("variables"),
+    FUNCTION("functions"),
+    ARGUMENTS("argument lists"),
+    LIST("lists"),
+    MAP("maps");
+
+    final String plural;
+
+    Kind(String plural) {
+      this.plural = plural;
+    }
+  }
+
+  private static final Kind[] KINDS = Kind.values();
+
+  private final boolean enabled;
+  private long[][] counts = new long[KINDS.length][64]; // by kind, then line
+  private long[] bytes = new long[64]; // by line
+
+  private AllocationProfile(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  AllocationProfile() {
+    this(true);
+  }
+
+  static AllocationProfile disabled() {
+    return new AllocationProfile(false);
+  }
+
+  boolean enabled() {
+    return enabled;
+  }
+
+  void record(int line, Kind kind, long size) {
+    if (line >= bytes.length) grow(line);
+    counts[kind.ordinal()][line]++;
+    bytes[line] += size;
+  }
+
+  private void grow(int line) {
+    final var length = Math.max(bytes.length * 2, line + 1);
+    for (int i = 0; i < counts.length; i++) counts[i] = Arrays.copyOf(counts[i], length);
+    bytes = Arrays.copyOf(bytes, length);
+  }
+
+  AllocationProfile fork() {
+    return new AllocationProfile(enabled);
+  }
+
+  synchronized void join(AllocationProfile worker) {
+    if (worker.bytes.length > bytes.length) grow(worker.bytes.length - 1);
+    for (int line = 0; line < worker.bytes.length; line++) {
+      for (int i = 0; i < counts.length; i++) counts[i][line] += worker.counts[i][line];
+      bytes[line] += worker.bytes[line];
+    }
+  }
+
+  // the lines that allocated the most first, after the totals.
+  void report(PrintStream err) {
+    final var lines = new ArrayList<Integer>();
+    var total = 0L;
+    var allocations = 0L;
+    for (int line = 0; line < bytes.length; line++) {
+      final var count = count(line);
+      if (count == 0) continue;
+      lines.add(line);
+      total += bytes[line];
+      allocations += count;
+    }
+    lines.sort(
+        Comparator.<Integer>comparingLong(line -> bytes[line])
+            .reversed()
+            .thenComparing(Comparator.naturalOrder()));
+
+    err.println("[alloc] " + total + " bytes in " + allocations + " allocations");
+    for (var line : lines.subList(0, Math.min(lines.size(), REPORTED_LINES))) {
+      final var kinds = new ArrayList<String>();
+      for (var kind : KINDS) {
+        final var count = counts[kind.ordinal()][line];
+        if (count > 0) kinds.add(count + " " + kind.plural);
+      }
+      err.println(
+          "[alloc] "
+              + (line == 0 ? "no line" : "line " + line)
+              + ": "
+              + bytes[line]
+              + " bytes in "
+              + count(line)
+              + " allocations ("
+              + String.join(", ", kinds)
+              + ")");
+    }
+    if (lines.size() > REPORTED_LINES) {
+      err.println("[alloc] and " + (lines.size() - REPORTED_LINES) + " more lines");
+    }
+  }
+
+  private long count(int line) {
+    var count = 0L;
+    for (var byKind : counts) count += byKind[line];
+    return count;
+  }
+}
@@ -6,14 +6,33 @@ import java.util.Optional;
 class AnonFunction implements LoxCallable {
   private final Expr.Function definition;
   private final Environment closure;
+  private Expr.Function parsed = null; // `definition` with its body, see `LazyBody`
 
   AnonFunction(Expr.Function definition, Environment closure) {
     this.definition = definition;
     this.closure = closure;
   }
 
+  // null if the body was skipped and has syntax errors. a worker of `parallelFor` parses it into
+  // side tables that go away with the worker, so what it parsed isn't kept here.
+  Expr.Function definition(Interpreter interpreter) {
+    if (parsed != null) return parsed;
+    final var definition = interpreter.parsed(this.definition);
+    if (!interpreter.isWorker()) parsed = definition;
+    return definition;
+  }
+
+  Environment closure() {
+    return closure;
+  }
+
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    final var environment = new Environment(closure);
+    interpreter.budget().call();
+    final var definition = definition(interpreter);
+    if (definition == null) {
+      throw new RuntimeException("Can't call " + this + ", its body has syntax errors.");
+    }
+    final var environment = new Environment(closure, interpreter.owner());
     final var params = definition.params();
     for (int i = 0; i < params.size(); i++) {
       environment.define(params.get(i).lexeme(), Optional.of(arguments.get(i)));
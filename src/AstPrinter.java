@@ -2,155 +2,313 @@ package com.craftinginterpreters.lox;
 
 import static com.craftinginterpreters.lox.TokenKind.ERROR;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
-class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
-  int depth = 0;
+// renders trees into one reusable buffer instead of concatenating strings on the way back up.
+// output is cut off with `…` past `maxDepth` levels of nesting or `maxLength` chars, so printing
+// a huge paste or a deeply nested expression costs no more than printing a screenful.
+class AstPrinter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static final int MAX_DEPTH = 64;
+  static final int MAX_LENGTH = 1 << 12;
+
+  private static final class Truncated extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Truncated() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final Truncated TRUNCATED = new Truncated();
+
+  private final StringBuilder out = new StringBuilder();
+  private final int maxDepth;
+  private final int maxLength;
+  private int indent = 0;
+  private int depth = 0;
+
+  AstPrinter() {
+    this(MAX_DEPTH, MAX_LENGTH);
+  }
+
+  AstPrinter(int maxDepth, int maxLength) {
+    this.maxDepth = maxDepth;
+    this.maxLength = maxLength;
+  }
 
   String print(Expr expr) {
-    return expr.accept(this);
+    return render(() -> write(expr)).toString();
   }
 
   String print(Stmt stmt) {
-    return stmt.accept(this);
+    return render(() -> writeStmt(stmt)).toString();
   }
 
-  String print(List<Stmt> stmts) {
-    if (stmts.size() < 1) return "()";
-    final var shouldNest = stmts.size() != 1;
-    if (shouldNest) depth += 1;
-    final var in = "  ".repeat(depth);
-    final var result =
-        !shouldNest
-            ? print(stmts.getLast())
-            : "(do\n" + in + String.join("\n" + in, stmts.stream().map(this::print).toList()) + ")";
-    if (shouldNest) depth -= 1;
-    return result;
+  void print(List<Stmt> stmts, Appendable sink) {
+    try {
+      sink.append(render(() -> write(stmts)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
-  private String renderTree(String name, Expr... exprs) {
-    final var builder = new StringBuilder();
+  private StringBuilder render(Runnable tree) {
+    out.setLength(0);
+    indent = 0;
+    depth = 0;
+    try {
+      tree.run();
+    } catch (Truncated _truncated) {
+      out.setLength(maxLength);
+      out.append('…');
+    }
+    return out;
+  }
 
-    builder.append("(").append(name);
-    for (var expr : exprs) {
-      builder.append(" ").append(print(expr));
+  private void write(Expr expr) {
+    if (enter()) expr.accept(this);
+    depth -= 1;
+  }
+
+  private void writeStmt(Stmt stmt) {
+    if (enter()) stmt.accept(this);
+    depth -= 1;
+  }
+
+  private void write(List<Stmt> stmts) {
+    if (stmts.size() < 1) {
+      write("()");
+      return;
+    }
+    if (stmts.size() == 1) {
+      writeStmt(stmts.getLast());
+      return;
+    }
+
+    indent += 1;
+    write("(do");
+    for (var stmt : stmts) {
+      newline();
+      writeStmt(stmt);
     }
-    builder.append(")");
+    write(")");
+    indent -= 1;
+  }
+
+  // false once the tree is nested too deep to print the node, which is elided instead.
+  private boolean enter() {
+    depth += 1;
+    if (depth <= maxDepth) return true;
+    write("…");
+    return false;
+  }
 
-    return builder.toString();
+  private void write(String text) {
+    out.append(text);
+    if (out.length() > maxLength) throw TRUNCATED;
+  }
+
+  private void newline() {
+    out.append('\n');
+    for (int i = 0; i < indent; i++) out.append("  ");
+    if (out.length() > maxLength) throw TRUNCATED;
+  }
+
+  private Void renderTree(String name, Expr... exprs) {
+    write("(");
+    write(name);
+    for (var expr : exprs) {
+      write(" ");
+      write(expr);
+    }
+    write(")");
+    return null;
   }
 
   @Override
-  public String visitLogicalExpr(Expr.Logical expr) {
+  public Void visitLogicalExpr(Expr.Logical expr) {
     return renderTree(expr.operator().lexeme(), expr.left(), expr.right());
   }
 
   @Override
-  public String visitBinaryExpr(Expr.Binary expr) {
+  public Void visitBinaryExpr(Expr.Binary expr) {
     return renderTree(expr.operator().lexeme(), expr.left(), expr.right());
   }
 
   @Override
-  public String visitGroupingExpr(Expr.Grouping expr) {
+  public Void visitGroupingExpr(Expr.Grouping expr) {
     return renderTree("group", expr.expression());
   }
 
   @Override
-  public String visitLiteralExpr(Expr.Literal expr) {
+  public Void visitLiteralExpr(Expr.Literal expr) {
     final var v = expr.value();
-    return switch (v) {
-      case null -> "'nil";
-      case ERROR -> "'" + v.toString();
-      case Boolean b -> "'" + b.toString();
-      // case Parser.ParseError e -> "[" + e.token.toString() + "]";
-      default -> "«" + v.toString() + "»";
-    };
+    write(
+        switch (v) {
+          case null -> "'nil";
+          case ERROR -> "'" + v.toString();
+          case Boolean b -> "'" + b.toString();
+          // case Parser.ParseError e -> "[" + e.token.toString() + "]";
+          default -> "«" + v.toString() + "»";
+        });
+    return null;
   }
 
   @Override
-  public String visitCallExpr(Expr.Call expr) {
-    return renderTree("^" + print(expr.callee()), expr.arguments().toArray(Expr[]::new));
+  public Void visitCallExpr(Expr.Call expr) {
+    write("(^");
+    write(expr.callee());
+    for (var argument : expr.arguments()) {
+      write(" ");
+      write(argument);
+    }
+    write(")");
+    return null;
   }
 
   @Override
-  public String visitUnaryExpr(Expr.Unary expr) {
+  public Void visitUnaryExpr(Expr.Unary expr) {
     return renderTree(expr.operator().lexeme(), expr.right());
   }
 
+  // fused nodes print as the code they were made from.
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    return expr.binary().accept(this);
+  }
+
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    return expr.assign().accept(this);
+  }
+
   @Override
-  public String visitIfExpr(Expr.If expr) {
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    return expr.expression().accept(this);
+  }
+
+  @Override
+  public Void visitProbedExpr(Expr.Probed expr) {
+    return expr.expression().accept(this);
+  }
+
+  @Override
+  public Void visitProbedStmt(Stmt.Probed stmt) {
+    return stmt.statement().accept(this);
+  }
+
+  @Override
+  public Void visitHoistedStmt(Stmt.Hoisted stmt) {
+    return stmt.loop().accept(this);
+  }
+
+  @Override
+  public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+    return stmt.loop().accept(this);
+  }
+
+  @Override
+  public Void visitIfExpr(Expr.If expr) {
     return renderTree("ifx", expr.condition(), expr.first(), expr.second());
   }
 
   @Override
-  public String visitVariableExpr(Expr.Variable expr) {
-    return expr.name().lexeme();
+  public Void visitVariableExpr(Expr.Variable expr) {
+    write(expr.name().lexeme());
+    return null;
   }
 
   @Override
-  public String visitFunctionExpr(Expr.Function expr) {
-    final var params = String.join(" '", expr.params().stream().map(Token::lexeme).toList());
-    return "(("
-        + (params.length() > 0 ? "params '" + params : "")
-        + ")"
-        + " '"
-        + print(expr.body())
-        + ")";
+  public Void visitFunctionExpr(Expr.Function expr) {
+    write("((");
+    final var params = expr.params();
+    for (int i = 0; i < params.size(); i++) {
+      write(i == 0 ? "params '" : " '");
+      write(params.get(i).lexeme());
+    }
+    write(") '");
+    final var body = expr.body() != null ? expr.body() : expr.lazy().parsed();
+    if (body != null) {
+      writeStmt(body);
+    } else {
+      write("…"); // a lazy body that hasn't been called yet, printing doesn't parse it
+    }
+    write(")");
+    return null;
   }
 
   @Override
-  public String visitAssignExpr(Expr.Assign expr) {
+  public Void visitAssignExpr(Expr.Assign expr) {
     return renderTree("assign '" + expr.name().lexeme(), expr.value());
   }
 
   @Override
-  public String visitExpressionStmt(Stmt.Expression stmt) {
-    return print(stmt.expression());
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    write(stmt.expression());
+    return null;
   }
 
   @Override
-  public String visitPrintStmt(Stmt.Print stmt) {
+  public Void visitPrintStmt(Stmt.Print stmt) {
     return renderTree("print", stmt.expression());
   }
 
   @Override
-  public String visitVarStmt(Stmt.Var stmt) {
+  public Void visitVarStmt(Stmt.Var stmt) {
     final var decl = "declare '" + stmt.name().lexeme();
-    return stmt.initializer().map(i -> renderTree(decl, i)).orElseGet(() -> renderTree(decl));
+    if (stmt.initializer() == null) return renderTree(decl);
+    return renderTree(decl, stmt.initializer());
   }
 
   @Override
-  public String visitBlockStmt(Stmt.Block stmt) {
-    return print(stmt.statements());
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    write(stmt.statements());
+    return null;
   }
 
   @Override
-  public String visitIfStmt(Stmt.If stmt) {
-    return "(if "
-        + print(stmt.condition())
-        + " "
-        + print(stmt.thenBranch())
-        + stmt.elseBranch().map(s -> " " + print(s)).orElse("")
-        + ")";
+  public Void visitIfStmt(Stmt.If stmt) {
+    write("(if ");
+    write(stmt.condition());
+    write(" ");
+    writeStmt(stmt.thenBranch());
+    if (stmt.elseBranch() != null) {
+      write(" ");
+      writeStmt(stmt.elseBranch());
+    }
+    write(")");
+    return null;
   }
 
   @Override
-  public String visitWhileStmt(Stmt.While stmt) {
-    return "(while " + print(stmt.condition()) + " " + print(stmt.body().statements());
+  public Void visitWhileStmt(Stmt.While stmt) {
+    write("(while ");
+    write(stmt.condition());
+    write(" ");
+    write(stmt.body().statements());
+    return null;
   }
 
   @Override
-  public String visitBreakStmt(Stmt.Break expr) {
+  public Void visitBreakStmt(Stmt.Break expr) {
     return renderTree("break");
   }
 
   @Override
-  public String visitReturnStmt(Stmt.Return stmt) {
-    return stmt.value().map(v -> renderTree("return", v)).orElseGet(() -> renderTree("return"));
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value() == null) return renderTree("return");
+    return renderTree("return", stmt.value());
   }
 
   @Override
-  public String visitFunctionStmt(Stmt.Function stmt) {
-    return "(declare '" + stmt.name().lexeme() + " " + print(stmt.definition()) + ")";
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    write("(declare '");
+    write(stmt.name().lexeme());
+    write(" ");
+    write(stmt.definition());
+    write(")");
+    return null;
   }
 }
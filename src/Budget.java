@@ -0,0 +1,111 @@
+package com.craftinginterpreters.lox;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// how much work one run of a script gets to do: statements executed, functions called and wall
+// clock time. the interpreter bumps `statements` on every statement, which is all the common path
+// pays, and checks the totals at loop back-edges and function entry. those are the only places a
+// script can keep running from without bound. the clock is only read every `CLOCK_INTERVAL`
+// checks.
+final class Budget {
+  private static final int CLOCK_INTERVAL = 1 << 10;
+
+  // not a `RuntimeError`, scripts can't catch it and calls don't wrap it.
+  static final class Exceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  private final long maxStatements;
+  private final long maxCalls;
+  private final long timeoutNanos;
+
+  long statements = 0;
+  private long calls = 0;
+  private long deadline = 0; // only ever compared by difference, it may wrap around
+  private int untilClock = CLOCK_INTERVAL;
+  private long forkedStatements = 0; // what the budget it was forked from had used by then
+  private long forkedCalls = 0;
+
+  Budget(long maxStatements, long maxCalls, long timeoutMillis) {
+    this(
+        maxStatements,
+        maxCalls,
+        timeoutMillis == Long.MAX_VALUE
+            ? Long.MAX_VALUE
+            : Math.multiplyExact(timeoutMillis, 1_000_000L),
+        0);
+  }
+
+  private Budget(long maxStatements, long maxCalls, long timeoutNanos, long deadline) {
+    this.maxStatements = maxStatements;
+    this.maxCalls = maxCalls;
+    this.timeoutNanos = timeoutNanos;
+    this.deadline = deadline;
+  }
+
+  static Budget unlimited() {
+    return new Budget(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  // every run starts with the whole budget, a repl gets it again for each line.
+  void start() {
+    statements = 0;
+    calls = 0;
+    untilClock = CLOCK_INTERVAL;
+    deadline = System.nanoTime() + timeoutNanos;
+  }
+
+  // the budget of a worker of `parallelFor`: it picks up the counts where this one is and keeps
+  // the deadline, and what it uses is added back by `join`. workers running side by side can
+  // each go up to the limits before the others' counts get there, so together they may overshoot
+  // them a little.
+  Budget fork() {
+    final var worker = new Budget(maxStatements, maxCalls, timeoutNanos, deadline);
+    worker.statements = worker.forkedStatements = statements;
+    worker.calls = worker.forkedCalls = calls;
+    return worker;
+  }
+
+  synchronized void join(Budget worker) {
+    statements += worker.statements - worker.forkedStatements;
+    calls += worker.calls - worker.forkedCalls;
+  }
+
+  void backEdge() {
+    if (statements > maxStatements) {
+      throw new Exceeded("Exceeded the budget of " + maxStatements + " statements.");
+    }
+    if (--untilClock > 0) return;
+    untilClock = CLOCK_INTERVAL;
+    if (timeoutNanos != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+      throw deadlineExceeded();
+    }
+  }
+
+  // for `sleep`, which doesn't get to a back-edge until it wakes up: it wakes up at the deadline
+  // instead of sleeping past it.
+  void sleep(long millis) throws InterruptedException {
+    final var nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    final var left = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    if (nanos < left) {
+      Thread.sleep(Duration.ofNanos(nanos));
+      return;
+    }
+    if (left > 0) Thread.sleep(Duration.ofNanos(left));
+    throw deadlineExceeded();
+  }
+
+  private Exceeded deadlineExceeded() {
+    return new Exceeded("Exceeded the deadline of " + timeoutNanos / 1_000_000 + "ms.");
+  }
+
+  void call() {
+    if (++calls > maxCalls) throw new Exceeded("Exceeded the budget of " + maxCalls + " calls.");
+    backEdge();
+  }
+}
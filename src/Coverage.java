@@ -0,0 +1,112 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// `--coverage`: how many times every statement ran and which ways every condition went, counted
+// by probes on the nodes and reported by line once the script finishes. a line runs as many
+// times as the statement on it that ran the most, and a condition that was never true or never
+// false has a branch that wasn't taken. the workers of `parallelFor` share the counters.
+final class Coverage implements Instrument {
+  private static final class Hits implements Probe {
+    final int line;
+    final AtomicLong count = new AtomicLong();
+
+    Hits(int line) {
+      this.line = line;
+    }
+
+    @Override
+    public void enter(Interpreter interpreter) {
+      count.incrementAndGet();
+    }
+  }
+
+  private static final class Branch implements Probe {
+    final int line;
+    final AtomicLong taken = new AtomicLong(); // true
+    final AtomicLong skipped = new AtomicLong(); // false
+
+    Branch(int line) {
+      this.line = line;
+    }
+
+    @Override
+    public void exit(Interpreter interpreter, Object value) {
+      (Interpreter.isTruthy(value) ? taken : skipped).incrementAndGet();
+    }
+  }
+
+  private static final class Line {
+    long runs = -1; // until a statement on the line is found
+    final List<Branch> branches = new ArrayList<>();
+  }
+
+  private final List<Hits> statements = new ArrayList<>();
+  private final List<Branch> conditions = new ArrayList<>();
+
+  // function bodies parsed by a worker get instrumented on its thread. statements with nothing
+  // but literals in them have no line to report them on, and are left alone.
+  @Override
+  public synchronized Probe statement(Stmt stmt) {
+    final var line = Lines.ofStmt(stmt);
+    if (line == 0) return null;
+    final var hits = new Hits(line);
+    statements.add(hits);
+    return hits;
+  }
+
+  @Override
+  public synchronized Probe condition(Expr condition) {
+    final var line = Lines.of(condition);
+    if (line == 0) return null;
+    final var branch = new Branch(line);
+    conditions.add(branch);
+    return branch;
+  }
+
+  synchronized void report(PrintStream err) {
+    final var lines = new TreeMap<Integer, Line>();
+    for (var hits : statements) {
+      final var line = lines.computeIfAbsent(hits.line, _line -> new Line());
+      line.runs = Math.max(line.runs, hits.count.get());
+    }
+    for (var branch : conditions) {
+      lines.computeIfAbsent(branch.line, _line -> new Line()).branches.add(branch);
+    }
+
+    var run = 0;
+    var statementLines = 0;
+    var taken = 0;
+    for (var line : lines.values()) {
+      if (line.runs >= 0) statementLines++;
+      if (line.runs > 0) run++;
+      for (var branch : line.branches) {
+        if (branch.taken.get() > 0) taken++;
+        if (branch.skipped.get() > 0) taken++;
+      }
+    }
+    err.println(
+        "[coverage] "
+            + run
+            + " of "
+            + statementLines
+            + " lines run, "
+            + taken
+            + " of "
+            + 2 * conditions.size()
+            + " branches taken");
+    for (var entry : lines.entrySet()) {
+      final var line = entry.getValue();
+      final var parts = new ArrayList<String>();
+      if (line.runs >= 0) parts.add(line.runs > 0 ? line.runs + " runs" : "not run");
+      for (var branch : line.branches) {
+        parts.add("true " + branch.taken.get() + " false " + branch.skipped.get());
+      }
+      err.println("[coverage] line " + entry.getKey() + ": " + String.join(", ", parts));
+    }
+  }
+}
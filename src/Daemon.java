@@ -0,0 +1,276 @@
+package com.craftinginterpreters.lox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+// `--serve`: a resident interpreter that runs the scripts clients send it over a unix domain
+// socket, so they don't each pay for starting a jvm and warming up its jit. every connection
+// carries one script and gets a fresh interpreter on a worker thread, with the budget and heap
+// limits the daemon was started with. parsed scripts are kept around as `FlatAst`s, keyed by path
+// and modification time or by source, which take a fraction of the memory their trees would, and
+// every run gets a tree inflated from them.
+//
+// both directions are frames of a kind byte, a big-endian int length and that many bytes. the
+// client sends one `PATH` (absolute, utf-8) or `SOURCE` frame, and gets back `STDOUT` and
+// `STDERR` frames as the script runs, and finally an `EXIT` frame holding the exit status as
+// an int. `--client` is that client, `-` sends the script on stdin.
+final class Daemon {
+  static final byte PATH = 'p';
+  static final byte SOURCE = 's';
+  static final byte STDOUT = 'o';
+  static final byte STDERR = 'e';
+  static final byte EXIT = 'x';
+
+  private static final int MAX_REQUEST = 64 << 20;
+  private static final int CACHED_SCRIPTS = 256;
+
+  private interface Loader {
+    FlatAst load() throws IOException;
+  }
+
+  private final Map<String, FlatAst> scripts =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder: */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FlatAst> eldest) {
+          return size() > CACHED_SCRIPTS;
+        }
+      };
+
+  private Daemon() {}
+
+  // returns the exit status, if it returns at all.
+  static int serve(Path socket) throws IOException {
+    final var address = UnixDomainSocketAddress.of(socket);
+    if (isServed(address)) {
+      System.err.println("Error: " + socket + " is already being served.");
+      return 1;
+    }
+    Files.deleteIfExists(socket); // left behind by a daemon that didn't get to clean up
+    final var daemon = new Daemon();
+    final var workers =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            task -> {
+              final var thread = new Thread(task, "jlox-worker");
+              thread.setDaemon(true);
+              return thread;
+            });
+    try (final var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(address);
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    try {
+                      Files.deleteIfExists(socket);
+                    } catch (IOException e) {
+                    }
+                  }));
+      while (true) {
+        final var connection = server.accept();
+        workers.execute(() -> daemon.handle(connection));
+      }
+    }
+  }
+
+  private static boolean isServed(UnixDomainSocketAddress address) {
+    try {
+      SocketChannel.open(address).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void handle(SocketChannel connection) {
+    try (connection) {
+      final var request = read(connection);
+      final var out =
+          new OutputSink(new Frames(connection, STDOUT), UTF_8, OutputSink.DEFAULT_CAPACITY);
+      final var err =
+          new PrintStream(
+              Channels.newOutputStream(new Frames(connection, STDERR)),
+              /* autoFlush: */ true,
+              UTF_8);
+      final var diagnostics = Lox.diagnostics(err, null);
+      Lox.diagnostics.set(diagnostics);
+      int status;
+      try {
+        status = run(request, out);
+      } catch (RuntimeException | StackOverflowError e) {
+        // what would have taken the whole process down, it only takes the script
+        diagnostics.flush();
+        e.printStackTrace(err);
+        status = 1;
+      } finally {
+        diagnostics.flush();
+        Lox.diagnostics.remove();
+      }
+      err.flush();
+      write(connection, EXIT, ByteBuffer.allocate(Integer.BYTES).putInt(0, status));
+    } catch (IOException | UncheckedIOException e) {
+      // the client hung up or doesn't speak the protocol, there's no one left to tell
+    }
+  }
+
+  private int run(Frame request, OutputSink out) {
+    try {
+      return switch (request.kind()) {
+        case SOURCE -> runSource(Charset.defaultCharset().decode(request.payload()), out);
+        case PATH -> runPath(Path.of(UTF_8.decode(request.payload()).toString()), out);
+        default -> {
+          Lox.diagnostics().err.println("Error: Expected a script.");
+          yield 64;
+        }
+      };
+    } catch (IOException e) {
+      Lox.diagnostics()
+          .report(Diagnostics.Kind.READ, 0, null, "Can't read the script: " + e.getMessage());
+      return 66;
+    }
+  }
+
+  private int runSource(CharSequence text, OutputSink out) throws IOException {
+    final var source = text.toString();
+    if (Lox.fused) return Lox.runFused(source, out);
+    final var script = cached("source " + source, () -> flat(Lox.parse(source)));
+    return script == null ? 65 : Lox.run(script.toTree(), out);
+  }
+
+  private int runPath(Path path, OutputSink out) throws IOException {
+    final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    final var version = path + " " + attributes.lastModifiedTime() + " " + attributes.size();
+    if (path.toString().endsWith(".loxc")) {
+      return Lox.run(cached("compiled " + version, () -> Lox.readCompiled(path)).toTree(), out);
+    }
+    if (Lox.fused) return Lox.runFused(read(path), out);
+    final var script = cached("path " + version, () -> flat(Lox.parse(read(path))));
+    return script == null ? 65 : Lox.run(script.toTree(), out);
+  }
+
+  private static FlatAst flat(List<Stmt> stmts) {
+    return stmts == null ? null : FlatAst.of(stmts);
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), Charset.defaultCharset());
+  }
+
+  // scripts with errors aren't kept, their errors get reported every time.
+  private FlatAst cached(String key, Loader loader) throws IOException {
+    synchronized (scripts) {
+      final var script = scripts.get(key);
+      if (script != null) return script;
+    }
+    final var script = loader.load();
+    if (script != null) {
+      synchronized (scripts) {
+        scripts.put(key, script);
+      }
+    }
+    return script;
+  }
+
+  // returns the script's exit status.
+  static int send(Path socket, String script) throws IOException {
+    final SocketChannel connection;
+    try {
+      connection = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+    } catch (IOException e) {
+      System.err.println("Error: Nothing is serving " + socket + ".");
+      return 69;
+    }
+    try (connection) {
+      if (script.equals("-")) {
+        write(connection, SOURCE, ByteBuffer.wrap(System.in.readAllBytes()));
+      } else {
+        final var path = Path.of(script).toAbsolutePath().toString();
+        write(connection, PATH, UTF_8.encode(path));
+      }
+      final var stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+      final var stderr = new FileOutputStream(FileDescriptor.err).getChannel();
+      while (true) {
+        final var frame = read(connection);
+        switch (frame.kind()) {
+          case STDOUT -> writeFully(stdout, frame.payload());
+          case STDERR -> writeFully(stderr, frame.payload());
+          case EXIT -> {
+            return frame.payload().getInt();
+          }
+          default -> throw new IOException("Unexpected frame.");
+        }
+      }
+    } catch (EOFException e) {
+      System.err.println("Error: The daemon hung up.");
+      return 74;
+    }
+  }
+
+  private record Frame(byte kind, ByteBuffer payload) {}
+
+  private static Frame read(SocketChannel connection) throws IOException {
+    final var header = readFully(connection, ByteBuffer.allocate(1 + Integer.BYTES));
+    final var length = header.getInt(1);
+    if (length < 0 || length > MAX_REQUEST) throw new IOException("Frame too large.");
+    return new Frame(header.get(0), readFully(connection, ByteBuffer.allocate(length)));
+  }
+
+  private static ByteBuffer readFully(SocketChannel connection, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (connection.read(buffer) < 0) throw new EOFException();
+    }
+    return buffer.flip();
+  }
+
+  private static void write(SocketChannel connection, byte kind, ByteBuffer payload)
+      throws IOException {
+    final var header = ByteBuffer.allocate(1 + Integer.BYTES).put(kind).putInt(payload.remaining());
+    final var buffers = new ByteBuffer[] {header.flip(), payload};
+    while (payload.hasRemaining() || header.hasRemaining()) connection.write(buffers);
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) channel.write(bytes);
+  }
+
+  // what the script writes to stdout or stderr, a frame per write. closing it leaves the
+  // connection alone.
+  private record Frames(SocketChannel connection, byte kind) implements WritableByteChannel {
+    @Override
+    public int write(ByteBuffer bytes) throws IOException {
+      final var length = bytes.remaining();
+      Daemon.write(connection, kind, bytes);
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return connection.isOpen();
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,97 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// what a script reported, from scanning it to running it. diagnostics are collected as they come
+// and only written out by `flush`, all of them in one go, so scripts checked or run side by side
+// don't take turns on stderr for every error. past `cap` they're only counted. the workers of
+// `parallelFor` report into their script's.
+final class Diagnostics {
+  enum Kind {
+    SYNTAX,
+    RESOLUTION,
+    RUNTIME,
+    LIMIT, // a budget or heap limit the script ran into
+    READ // the script couldn't be read
+  }
+
+  // `lexeme` is null when the diagnostic isn't about a token, and empty at the end of the input.
+  // those with no line are about the script as a whole.
+  record Diagnostic(Kind kind, int line, String lexeme, String message) {
+    @Override
+    public String toString() {
+      if (line == 0) return "Error: " + message;
+      final var where =
+          switch (lexeme) {
+            case null -> "";
+            case "" -> " at end";
+            default -> " at `" + lexeme + "`";
+          };
+      return "[line " + line + "] Error" + where + ": " + message;
+    }
+  }
+
+  final PrintStream err;
+  private final int cap;
+  private final String name; // put in front of every diagnostic, null for none
+  private final List<Diagnostic> pending = new ArrayList<>();
+  private int dropped = 0;
+  private boolean hadError = false;
+  private boolean hadSyntaxError = false; // the part of `hadError` that parsing reported
+  private boolean hadRuntimeError = false;
+
+  Diagnostics(PrintStream err, int cap, String name) {
+    this.err = err;
+    this.cap = cap;
+    this.name = name;
+  }
+
+  synchronized void report(Kind kind, int line, String lexeme, String message) {
+    switch (kind) {
+      case RUNTIME, LIMIT -> hadRuntimeError = true;
+      case SYNTAX -> hadError = hadSyntaxError = true;
+      default -> hadError = true;
+    }
+    if (pending.size() < cap) {
+      pending.add(new Diagnostic(kind, line, lexeme, message));
+    } else {
+      dropped++;
+    }
+  }
+
+  synchronized boolean hadError() {
+    return hadError;
+  }
+
+  synchronized boolean hadSyntaxError() {
+    return hadSyntaxError;
+  }
+
+  synchronized boolean hadRuntimeError() {
+    return hadRuntimeError;
+  }
+
+  // for the next line of the repl.
+  synchronized void reset() {
+    hadError = false;
+    hadSyntaxError = false;
+    hadRuntimeError = false;
+  }
+
+  // writes out what was reported since the last flush, the cap is on those.
+  synchronized void flush() {
+    if (pending.isEmpty() && dropped == 0) return;
+    final var text = new StringBuilder();
+    final var prefix = name == null ? "" : name + ": ";
+    for (var diagnostic : pending) text.append(prefix).append(diagnostic).append('\n');
+    if (dropped > 0) {
+      text.append(prefix).append("Error: ").append(dropped).append(" more not shown.\n");
+    }
+    err.print(text);
+    err.flush();
+    pending.clear();
+    dropped = 0;
+  }
+}
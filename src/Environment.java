@@ -7,35 +7,35 @@ import java.util.Optional;
 class Environment {
   private final Map<String, Object> values = new HashMap<>();
   final Environment enclosing;
+  final Object owner; // the interpreter that created it, see `Interpreter.owns`
+  boolean captured = false; // by a closure, only tracked while accounting for the heap
 
-  Environment() {
-    enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
+  Environment(Environment enclosing, Object owner) {
     this.enclosing = enclosing;
+    this.owner = owner;
   }
 
-  void define(String name, Optional<Object> value) {
+  // false when redefining a name this scope already has.
+  boolean define(String name, Optional<Object> value) {
+    final var before = values.size();
     values.put(name, value.orElse(null));
+    return values.size() > before;
   }
 
-  boolean assign(String name, Object value) {
-    if (values.containsKey(name)) {
-      values.put(name, value);
-      return true;
-    }
-    return Optional.ofNullable(enclosing).map(e -> e.assign(name, value)).orElse(false);
+  int size() {
+    return values.size();
   }
 
-  void assignAt(int distance, String name, Object value) {
-    ancestor(distance).values.put(name, value);
+  Object get(String name) {
+    return values.get(name);
   }
 
-  Optional<Object> get(String name) {
-    return values.containsKey(name)
-        ? Optional.ofNullable(values.get(name))
-        : Optional.ofNullable(enclosing).flatMap(e -> e.get(name));
+  void assign(String name, Object value) {
+    values.put(name, value);
+  }
+
+  void assignAt(int distance, String name, Object value) {
+    ancestor(distance).values.put(name, value);
   }
 
   Optional<Object> getAt(int distance, String name) {
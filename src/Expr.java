@@ -12,85 +12,385 @@ public interface Expr { // extends Grammar
 
     R visitCallExpr(Call expr);
 
+    R visitCompareExpr(Compare expr);
+
     R visitFunctionExpr(Function expr);
 
     R visitGroupingExpr(Grouping expr);
 
     R visitIfExpr(If expr);
 
+    R visitIncrementExpr(Increment expr);
+
+    R visitInvariantExpr(Invariant expr);
+
     R visitLiteralExpr(Literal expr);
 
     R visitLogicalExpr(Logical expr);
 
+    R visitProbedExpr(Probed expr);
+
     R visitUnaryExpr(Unary expr);
 
     R visitVariableExpr(Variable expr);
   }
 
-  record Assign(Token name, Expr value) implements Expr {
+  final class Assign implements Expr {
+    private final Token name;
+    private final Expr value;
+
+    int depth = -1;
+    final Globals.Slot global = new Globals.Slot();
+
+    Assign(Token name, Expr value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    public Token name() {
+      return name;
+    }
+
+    public Expr value() {
+      return value;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitAssignExpr(this);
     }
   }
 
-  record Binary(Expr left, Token operator, Expr right) implements Expr {
+  final class Binary implements Expr {
+    private final Expr left;
+    private final Token operator;
+    private final Expr right;
+
+    Types.Type operands = Types.Type.ANY;
+
+    Binary(Expr left, Token operator, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    public Expr left() {
+      return left;
+    }
+
+    public Token operator() {
+      return operator;
+    }
+
+    public Expr right() {
+      return right;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBinaryExpr(this);
     }
   }
 
-  record Call(Expr callee, Token paren, List<Expr> arguments) implements Expr {
+  final class Call implements Expr {
+    private final Expr callee;
+    private final Token paren;
+    private final List<Expr> arguments;
+
+    Call(Expr callee, Token paren, List<Expr> arguments) {
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    public Expr callee() {
+      return callee;
+    }
+
+    public Token paren() {
+      return paren;
+    }
+
+    public List<Expr> arguments() {
+      return arguments;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitCallExpr(this);
     }
   }
 
-  record Function(List<Token> params, Stmt.Block body) implements Expr {
+  final class Compare implements Expr {
+    private final Expr.Binary binary;
+    private final int leftDepth;
+    private final int rightDepth;
+
+    Compare(Expr.Binary binary, int leftDepth, int rightDepth) {
+      this.binary = binary;
+      this.leftDepth = leftDepth;
+      this.rightDepth = rightDepth;
+    }
+
+    public Expr.Binary binary() {
+      return binary;
+    }
+
+    public int leftDepth() {
+      return leftDepth;
+    }
+
+    public int rightDepth() {
+      return rightDepth;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareExpr(this);
+    }
+  }
+
+  final class Function implements Expr {
+    private final List<Token> params;
+    private final Stmt.Block body;
+    private final LazyBody lazy;
+
+    Function(List<Token> params, Stmt.Block body, LazyBody lazy) {
+      this.params = params;
+      this.body = body;
+      this.lazy = lazy;
+    }
+
+    public List<Token> params() {
+      return params;
+    }
+
+    public Stmt.Block body() {
+      return body;
+    }
+
+    public LazyBody lazy() {
+      return lazy;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionExpr(this);
     }
   }
 
-  record Grouping(Expr expression) implements Expr {
+  final class Grouping implements Expr {
+    private final Expr expression;
+
+    Grouping(Expr expression) {
+      this.expression = expression;
+    }
+
+    public Expr expression() {
+      return expression;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
   }
 
-  record If(Expr condition, Expr first, Expr second) implements Expr {
+  final class If implements Expr {
+    private final Expr condition;
+    private final Expr first;
+    private final Expr second;
+
+    If(Expr condition, Expr first, Expr second) {
+      this.condition = condition;
+      this.first = first;
+      this.second = second;
+    }
+
+    public Expr condition() {
+      return condition;
+    }
+
+    public Expr first() {
+      return first;
+    }
+
+    public Expr second() {
+      return second;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfExpr(this);
     }
   }
 
-  record Literal(Object value) implements Expr {
+  final class Increment implements Expr {
+    private final Expr.Assign assign;
+    private final int depth;
+    private final double delta;
+
+    Increment(Expr.Assign assign, int depth, double delta) {
+      this.assign = assign;
+      this.depth = depth;
+      this.delta = delta;
+    }
+
+    public Expr.Assign assign() {
+      return assign;
+    }
+
+    public int depth() {
+      return depth;
+    }
+
+    public double delta() {
+      return delta;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIncrementExpr(this);
+    }
+  }
+
+  final class Invariant implements Expr {
+    private final Expr expression;
+    private final Optimizer.Cell cell;
+    private final List<Expr.Variable> callees;
+
+    Invariant(Expr expression, Optimizer.Cell cell, List<Expr.Variable> callees) {
+      this.expression = expression;
+      this.cell = cell;
+      this.callees = callees;
+    }
+
+    public Expr expression() {
+      return expression;
+    }
+
+    public Optimizer.Cell cell() {
+      return cell;
+    }
+
+    public List<Expr.Variable> callees() {
+      return callees;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInvariantExpr(this);
+    }
+  }
+
+  final class Literal implements Expr {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    public Object value() {
+      return value;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLiteralExpr(this);
     }
   }
 
-  record Logical(Expr left, Token operator, Expr right) implements Expr {
+  final class Logical implements Expr {
+    private final Expr left;
+    private final Token operator;
+    private final Expr right;
+
+    Logical(Expr left, Token operator, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    public Expr left() {
+      return left;
+    }
+
+    public Token operator() {
+      return operator;
+    }
+
+    public Expr right() {
+      return right;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLogicalExpr(this);
     }
   }
 
-  record Unary(Token operator, Expr right) implements Expr {
+  final class Probed implements Expr {
+    private final Expr expression;
+    private final Probe probe;
+
+    Probed(Expr expression, Probe probe) {
+      this.expression = expression;
+      this.probe = probe;
+    }
+
+    public Expr expression() {
+      return expression;
+    }
+
+    public Probe probe() {
+      return probe;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitProbedExpr(this);
+    }
+  }
+
+  final class Unary implements Expr {
+    private final Token operator;
+    private final Expr right;
+
+    Types.Type operand = Types.Type.ANY;
+
+    Unary(Token operator, Expr right) {
+      this.operator = operator;
+      this.right = right;
+    }
+
+    public Token operator() {
+      return operator;
+    }
+
+    public Expr right() {
+      return right;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitUnaryExpr(this);
     }
   }
 
-  record Variable(Token name) implements Expr {
+  final class Variable implements Expr {
+    private final Token name;
+
+    int depth = -1;
+    final Globals.Slot global = new Globals.Slot();
+
+    Variable(Token name) {
+      this.name = name;
+    }
+
+    public Token name() {
+      return name;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVariableExpr(this);
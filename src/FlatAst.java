@@ -0,0 +1,536 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// a whole program packed into a handful of primitive arrays. nodes are integer handles into the
+// parallel `kinds`/`tokens`/`first`/`second`/`third` arenas, child lists are runs in `lists`,
+// tokens are rows of the `token*` arrays and literal values live in `constants`. a node costs five
+// ints no matter its kind, nothing points anywhere but into the arrays themselves, and the whole
+// thing can be written out and read back as is, unless it was parsed lazily. what each slot holds
+// for a given kind is spelled out in `Flattener` and mirrored by `Inflater`. absent children are
+// -1. the daemon keeps the scripts it has parsed like this, and inflates a tree for every run.
+final class FlatAst {
+  enum Kind {
+    ASSIGN,
+    BINARY,
+    CALL,
+    FUNCTION,
+    GROUPING,
+    IF_EXPR,
+    LITERAL,
+    LOGICAL,
+    UNARY,
+    VARIABLE,
+    BLOCK,
+    BREAK,
+    EXPRESSION,
+    FUNCTION_STMT,
+    IF_STMT,
+    PRINT,
+    RETURN,
+    VAR,
+    WHILE
+  }
+
+  private static final Kind[] KINDS = Kind.values();
+  private static final TokenKind[] TOKEN_KINDS = TokenKind.values();
+  private static final int MAGIC = 0x4c4f5843; // "LOXC"
+  private static final int VERSION = 1;
+
+  private byte[] kinds = new byte[256];
+  private int[] tokens = new int[256];
+  private int[] first = new int[256];
+  private int[] second = new int[256];
+  private int[] third = new int[256];
+  private int nodeCount = 0;
+
+  private int[] lists = new int[256]; // each list is its length followed by its elements
+  private int listsLength = 0;
+
+  private byte[] tokenKinds = new byte[256];
+  private int[] tokenLexemes = new int[256]; // index into `strings`
+  private int[] tokenLiterals = new int[256]; // index into `constants`, -1 for none
+  private int[] tokenLines = new int[256];
+  private int tokenCount = 0;
+
+  private final ArrayList<String> strings = new ArrayList<>();
+  private final ArrayList<Object> constants = new ArrayList<>();
+  private Map<String, Integer> stringIndices = new HashMap<>(); // only used while building
+  private Map<Object, Integer> constantIndices = new HashMap<>();
+  private int root = -1; // list of the top level statements
+
+  private FlatAst() {}
+
+  static FlatAst of(List<Stmt> statements) {
+    final var ast = new FlatAst();
+    ast.root = ast.new Flattener().statements(statements);
+    ast.trim();
+    return ast;
+  }
+
+  // down to what's used, for keeping around.
+  private void trim() {
+    kinds = Arrays.copyOf(kinds, nodeCount);
+    tokens = Arrays.copyOf(tokens, nodeCount);
+    first = Arrays.copyOf(first, nodeCount);
+    second = Arrays.copyOf(second, nodeCount);
+    third = Arrays.copyOf(third, nodeCount);
+    lists = Arrays.copyOf(lists, listsLength);
+    tokenKinds = Arrays.copyOf(tokenKinds, tokenCount);
+    tokenLexemes = Arrays.copyOf(tokenLexemes, tokenCount);
+    tokenLiterals = Arrays.copyOf(tokenLiterals, tokenCount);
+    tokenLines = Arrays.copyOf(tokenLines, tokenCount);
+    strings.trimToSize();
+    constants.trimToSize();
+    stringIndices = null;
+    constantIndices = null;
+  }
+
+  List<Stmt> toTree() {
+    return new Inflater().statements(root);
+  }
+
+  int size() {
+    return nodeCount;
+  }
+
+  Kind kind(int node) {
+    return KINDS[kinds[node]];
+  }
+
+  private int node(Kind kind, int token, int a, int b, int c) {
+    if (nodeCount == kinds.length) {
+      final var capacity = nodeCount * 2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      tokens = Arrays.copyOf(tokens, capacity);
+      first = Arrays.copyOf(first, capacity);
+      second = Arrays.copyOf(second, capacity);
+      third = Arrays.copyOf(third, capacity);
+    }
+    kinds[nodeCount] = (byte) kind.ordinal();
+    tokens[nodeCount] = token;
+    first[nodeCount] = a;
+    second[nodeCount] = b;
+    third[nodeCount] = c;
+    return nodeCount++;
+  }
+
+  private int list(int[] elements) {
+    if (listsLength + elements.length + 1 > lists.length) {
+      lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listsLength + elements.length + 1));
+    }
+    final var start = listsLength;
+    lists[listsLength++] = elements.length;
+    System.arraycopy(elements, 0, lists, listsLength, elements.length);
+    listsLength += elements.length;
+    return start;
+  }
+
+  private int token(Token token) {
+    if (tokenCount == tokenKinds.length) {
+      final var capacity = tokenCount * 2;
+      tokenKinds = Arrays.copyOf(tokenKinds, capacity);
+      tokenLexemes = Arrays.copyOf(tokenLexemes, capacity);
+      tokenLiterals = Arrays.copyOf(tokenLiterals, capacity);
+      tokenLines = Arrays.copyOf(tokenLines, capacity);
+    }
+    tokenKinds[tokenCount] = (byte) token.kind().ordinal();
+    tokenLexemes[tokenCount] = string(token.lexeme());
+    tokenLiterals[tokenCount] = token.literal().map(this::constant).orElse(-1);
+    tokenLines[tokenCount] = token.line();
+    return tokenCount++;
+  }
+
+  private int string(String value) {
+    return stringIndices.computeIfAbsent(
+        value,
+        v -> {
+          strings.add(v);
+          return strings.size() - 1;
+        });
+  }
+
+  private int constant(Object value) {
+    return constantIndices.computeIfAbsent(
+        value == null ? Nil.NIL : value, // a null key would look like a missing one
+        v -> {
+          constants.add(v == Nil.NIL ? null : v);
+          return constants.size() - 1;
+        });
+  }
+
+  private enum Nil {
+    NIL
+  }
+
+  private final class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    int statements(List<Stmt> statements) {
+      return list(statements.stream().mapToInt(this::flattenStmt).toArray());
+    }
+
+    private int flattenStmt(Stmt stmt) {
+      return stmt.accept(this);
+    }
+
+    // -1 for an absent child.
+    private int flatten(Expr expr) {
+      return expr == null ? -1 : expr.accept(this);
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      return node(Kind.ASSIGN, token(expr.name()), flatten(expr.value()), -1, -1);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      final var left = flatten(expr.left());
+      return node(Kind.BINARY, token(expr.operator()), left, flatten(expr.right()), -1);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+      final var callee = flatten(expr.callee());
+      final var arguments = list(expr.arguments().stream().mapToInt(this::flatten).toArray());
+      return node(Kind.CALL, token(expr.paren()), callee, arguments, -1);
+    }
+
+    @Override
+    public Integer visitFunctionExpr(Expr.Function expr) {
+      final var params = list(expr.params().stream().mapToInt(FlatAst.this::token).toArray());
+      // a lazy function's body is still tokens, it's kept as is and shared by every inflation.
+      final var lazy = expr.lazy() == null ? -1 : constant(expr.lazy());
+      final var body = expr.body() == null ? -1 : flattenStmt(expr.body());
+      return node(Kind.FUNCTION, -1, params, body, lazy);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      return node(Kind.GROUPING, -1, flatten(expr.expression()), -1, -1);
+    }
+
+    // fused nodes are a runtime concern, what gets saved is the code they were made from.
+    @Override
+    public Integer visitCompareExpr(Expr.Compare expr) {
+      return flatten(expr.binary());
+    }
+
+    @Override
+    public Integer visitIncrementExpr(Expr.Increment expr) {
+      return flatten(expr.assign());
+    }
+
+    @Override
+    public Integer visitInvariantExpr(Expr.Invariant expr) {
+      return flatten(expr.expression());
+    }
+
+    @Override
+    public Integer visitProbedExpr(Expr.Probed expr) {
+      return flatten(expr.expression());
+    }
+
+    @Override
+    public Integer visitProbedStmt(Stmt.Probed stmt) {
+      return flattenStmt(stmt.statement());
+    }
+
+    @Override
+    public Integer visitHoistedStmt(Stmt.Hoisted stmt) {
+      return flattenStmt(stmt.loop());
+    }
+
+    @Override
+    public Integer visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+      return flattenStmt(stmt.loop());
+    }
+
+    @Override
+    public Integer visitIfExpr(Expr.If expr) {
+      final var condition = flatten(expr.condition());
+      final var then = flatten(expr.first());
+      return node(Kind.IF_EXPR, -1, condition, then, flatten(expr.second()));
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      return node(Kind.LITERAL, -1, constant(expr.value()), -1, -1);
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      final var left = flatten(expr.left());
+      return node(Kind.LOGICAL, token(expr.operator()), left, flatten(expr.right()), -1);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      return node(Kind.UNARY, token(expr.operator()), flatten(expr.right()), -1, -1);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      return node(Kind.VARIABLE, token(expr.name()), -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+      final var statements = statements(stmt.statements());
+      return node(Kind.BLOCK, -1, statements, stmt.enclosedInLoop() ? 1 : 0, -1);
+    }
+
+    @Override
+    public Integer visitBreakStmt(Stmt.Break stmt) {
+      return node(Kind.BREAK, -1, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+      return node(Kind.EXPRESSION, -1, flatten(stmt.expression()), -1, -1);
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+      return node(Kind.FUNCTION_STMT, token(stmt.name()), flatten(stmt.definition()), -1, -1);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+      final var condition = flatten(stmt.condition());
+      final var then = flattenStmt(stmt.thenBranch());
+      final var otherwise = stmt.elseBranch() == null ? -1 : flattenStmt(stmt.elseBranch());
+      return node(Kind.IF_STMT, -1, condition, then, otherwise);
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+      return node(Kind.PRINT, -1, flatten(stmt.expression()), -1, -1);
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+      return node(Kind.RETURN, token(stmt.keyword()), flatten(stmt.value()), -1, -1);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+      return node(Kind.VAR, token(stmt.name()), flatten(stmt.initializer()), -1, -1);
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+      final var condition = flatten(stmt.condition());
+      return node(Kind.WHILE, -1, condition, flattenStmt(stmt.body()), -1);
+    }
+  }
+
+  // walks the arenas by index and rebuilds the records the resolver and interpreter run on.
+  private final class Inflater {
+    private final Token[] inflatedTokens = new Token[tokenCount];
+
+    List<Stmt> statements(int list) {
+      final var statements = new ArrayList<Stmt>(lists[list]);
+      for (int i = 1; i <= lists[list]; i++) statements.add(stmt(lists[list + i]));
+      return statements;
+    }
+
+    private List<Expr> exprs(int list) {
+      final var exprs = new ArrayList<Expr>(lists[list]);
+      for (int i = 1; i <= lists[list]; i++) exprs.add(expr(lists[list + i]));
+      return exprs;
+    }
+
+    private Token token(int index) {
+      if (inflatedTokens[index] == null) {
+        final var literal = tokenLiterals[index];
+        inflatedTokens[index] =
+            new Token(
+                TOKEN_KINDS[tokenKinds[index]],
+                strings.get(tokenLexemes[index]),
+                literal < 0 ? Optional.empty() : Optional.ofNullable(constants.get(literal)),
+                tokenLines[index]);
+      }
+      return inflatedTokens[index];
+    }
+
+    private Expr optionalExpr(int node) {
+      return node < 0 ? null : expr(node);
+    }
+
+    private Stmt.Block block(int node) {
+      return (Stmt.Block) stmt(node);
+    }
+
+    private Expr.Function function(int node) {
+      final var list = first[node];
+      final var params = new ArrayList<Token>(lists[list]);
+      for (int i = 1; i <= lists[list]; i++) params.add(token(lists[list + i]));
+      final var body = second[node] < 0 ? null : block(second[node]);
+      final var lazy = third[node] < 0 ? null : (LazyBody) constants.get(third[node]);
+      return new Expr.Function(params, body, lazy);
+    }
+
+    private Expr expr(int node) {
+      return switch (kind(node)) {
+        case ASSIGN -> new Expr.Assign(token(tokens[node]), expr(first[node]));
+        case BINARY -> new Expr.Binary(expr(first[node]), token(tokens[node]), expr(second[node]));
+        case CALL -> new Expr.Call(expr(first[node]), token(tokens[node]), exprs(second[node]));
+        case FUNCTION -> function(node);
+        case GROUPING -> new Expr.Grouping(expr(first[node]));
+        case IF_EXPR -> new Expr.If(expr(first[node]), expr(second[node]), expr(third[node]));
+        case LITERAL -> new Expr.Literal(constants.get(first[node]));
+        case LOGICAL ->
+            new Expr.Logical(expr(first[node]), token(tokens[node]), expr(second[node]));
+        case UNARY -> new Expr.Unary(token(tokens[node]), expr(first[node]));
+        case VARIABLE -> new Expr.Variable(token(tokens[node]));
+        default -> throw new IllegalStateException("node " + node + " isn't an expression");
+      };
+    }
+
+    private Stmt stmt(int node) {
+      return switch (kind(node)) {
+        case BLOCK -> new Stmt.Block(statements(first[node]), second[node] != 0);
+        case BREAK -> new Stmt.Break();
+        case EXPRESSION -> new Stmt.Expression(expr(first[node]));
+        case FUNCTION_STMT -> new Stmt.Function(token(tokens[node]), function(first[node]));
+        case IF_STMT ->
+            new Stmt.If(
+                expr(first[node]),
+                block(second[node]),
+                third[node] < 0 ? null : block(third[node]));
+        case PRINT -> new Stmt.Print(expr(first[node]));
+        case RETURN -> new Stmt.Return(token(tokens[node]), optionalExpr(first[node]));
+        case VAR -> new Stmt.Var(token(tokens[node]), optionalExpr(first[node]));
+        case WHILE -> new Stmt.While(expr(first[node]), block(second[node]));
+        default -> throw new IllegalStateException("node " + node + " isn't a statement");
+      };
+    }
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    out.writeInt(strings.size());
+    for (var string : strings) writeString(out, string);
+
+    out.writeInt(constants.size());
+    for (var constant : constants) {
+      switch (constant) {
+        case null -> out.writeByte(0);
+        case Boolean b -> out.writeByte(b ? 1 : 2);
+        case Double d -> {
+          out.writeByte(3);
+          out.writeDouble(d);
+        }
+        case LoxString s -> {
+          out.writeByte(4);
+          writeString(out, s.toString());
+        }
+        case TokenKind k -> {
+          out.writeByte(5);
+          out.writeByte(k.ordinal());
+        }
+        default -> throw new IllegalStateException("can't serialize constant " + constant);
+      }
+    }
+
+    out.writeInt(tokenCount);
+    for (int i = 0; i < tokenCount; i++) {
+      out.writeByte(tokenKinds[i]);
+      out.writeInt(tokenLexemes[i]);
+      out.writeInt(tokenLiterals[i]);
+      out.writeInt(tokenLines[i]);
+    }
+
+    out.writeInt(listsLength);
+    for (int i = 0; i < listsLength; i++) out.writeInt(lists[i]);
+
+    out.writeInt(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      out.writeByte(kinds[i]);
+      out.writeInt(tokens[i]);
+      out.writeInt(first[i]);
+      out.writeInt(second[i]);
+      out.writeInt(third[i]);
+    }
+    out.writeInt(root);
+  }
+
+  static FlatAst read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) throw new IOException("not a compiled lox program");
+    final var version = in.readInt();
+    if (version != VERSION) throw new IOException("unsupported compiled lox version " + version);
+
+    final var ast = new FlatAst();
+    final var stringCount = in.readInt();
+    for (int i = 0; i < stringCount; i++) ast.strings.add(readString(in));
+
+    final var constantCount = in.readInt();
+    for (int i = 0; i < constantCount; i++) {
+      ast.constants.add(
+          switch (in.readByte()) {
+            case 0 -> null;
+            case 1 -> true;
+            case 2 -> false;
+            case 3 -> in.readDouble();
+            case 4 -> LoxString.of(readString(in));
+            case 5 -> TOKEN_KINDS[in.readByte()];
+            default -> throw new IOException("corrupt constant pool");
+          });
+    }
+
+    ast.tokenCount = in.readInt();
+    ast.tokenKinds = new byte[ast.tokenCount];
+    ast.tokenLexemes = new int[ast.tokenCount];
+    ast.tokenLiterals = new int[ast.tokenCount];
+    ast.tokenLines = new int[ast.tokenCount];
+    for (int i = 0; i < ast.tokenCount; i++) {
+      ast.tokenKinds[i] = in.readByte();
+      ast.tokenLexemes[i] = in.readInt();
+      ast.tokenLiterals[i] = in.readInt();
+      ast.tokenLines[i] = in.readInt();
+    }
+
+    ast.listsLength = in.readInt();
+    ast.lists = new int[ast.listsLength];
+    for (int i = 0; i < ast.listsLength; i++) ast.lists[i] = in.readInt();
+
+    ast.nodeCount = in.readInt();
+    ast.kinds = new byte[ast.nodeCount];
+    ast.tokens = new int[ast.nodeCount];
+    ast.first = new int[ast.nodeCount];
+    ast.second = new int[ast.nodeCount];
+    ast.third = new int[ast.nodeCount];
+    for (int i = 0; i < ast.nodeCount; i++) {
+      ast.kinds[i] = in.readByte();
+      ast.tokens[i] = in.readInt();
+      ast.first[i] = in.readInt();
+      ast.second[i] = in.readInt();
+      ast.third[i] = in.readInt();
+    }
+    ast.root = in.readInt();
+    return ast;
+  }
+
+  private static void writeString(DataOutput out, String string) throws IOException {
+    final var bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    final var bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
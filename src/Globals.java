@@ -0,0 +1,71 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// top level variables, kept in a growable array indexed by a slot per name. every
+// `Expr.Variable`/`Expr.Assign` carries a `Slot` that remembers the index its name got on the
+// first lookup, so from then on reading a global is a single array load.
+//
+// the workers of `parallelFor` read the table while it's shared. only defining a name adds one,
+// under the table's lock, and `values` is replaced as a whole when it grows. looking up a name
+// that isn't defined finds nothing and caches nothing, so reads never change the table. nothing
+// defines or assigns globals while it's shared.
+final class Globals {
+  static final class Slot {
+    private Binding binding;
+  }
+
+  // slot indices are only meaningful for the table that handed them out. a node evaluated
+  // against another table (a fresh interpreter reusing the same tree) misses the cache and
+  // rebinds, and since the binding is swapped as one object it can't pair a table with an index
+  // from another table.
+  private record Binding(Globals table, int index) {}
+
+  private final Map<String, Integer> indices = new HashMap<>();
+  private volatile Object[] values = new Object[64];
+  private int count = 0;
+
+  synchronized void define(String name, Object value) {
+    final var index = indices.get(name);
+    if (index != null) {
+      values[index] = value;
+      return;
+    }
+    if (count == values.length) values = Arrays.copyOf(values, count * 2);
+    values[count] = value;
+    indices.put(name, count++);
+  }
+
+  // returns null for both undefined and nil globals, lookups don't tell them apart.
+  Object get(Slot slot, String name) {
+    final var index = indexOf(slot, name);
+    return index < 0 ? null : values[index];
+  }
+
+  synchronized Object get(String name) {
+    final var index = indices.get(name);
+    return index == null ? null : values[index];
+  }
+
+  // false if there's no such global.
+  boolean assign(Slot slot, String name, Object value) {
+    final var index = indexOf(slot, name);
+    if (index < 0) return false;
+    values[index] = value;
+    return true;
+  }
+
+  // -1 for a name that isn't defined (yet), which isn't remembered.
+  private int indexOf(Slot slot, String name) {
+    final var binding = slot.binding;
+    if (binding != null && binding.table == this) return binding.index;
+    final int index;
+    synchronized (this) {
+      index = indices.getOrDefault(name, -1);
+    }
+    if (index >= 0) slot.binding = new Binding(this, index);
+    return index;
+  }
+}
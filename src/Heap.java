@@ -0,0 +1,147 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// an estimate of the memory a script holds on to, and the ceiling it gets to hold. the
+// interpreter charges what it allocates on the script's behalf with rough sizes:
+//   - environments and argument lists for as long as their scope or call runs, and environments
+//     a closure captured until the garbage collector is done with them,
+//   - strings built by concatenation, functions and collections until they're collected, and
+//     so are the arrays ropes get when they're flattened and collections when they grow.
+// collected values are noticed through a reference queue whichever thread charges next drains.
+// garbage counts until it's noticed, the limit isn't worth a full collection to make room. a
+// heap and the heaps of the `parallelFor` workers forked from it share the count, the queue and
+// the limit, so workers running side by side stay under it together. a disabled heap charges
+// nothing.
+final class Heap {
+  // approximate footprints on a 64-bit jvm with compressed pointers
+  static final int ENVIRONMENT = 64; // the object and its empty `HashMap`
+  static final int VARIABLE = 48; // a map node, its table slot and a boxed value
+  static final int FUNCTION = 24;
+  static final int ARGUMENTS = 16;
+  static final int ARGUMENT = 4;
+  static final int STRING = 40; // a `LoxString` without its array
+  static final int ARRAY = 16;
+  static final int LIST = 40 + ARRAY + 8 * 8; // a new one, see `LoxList.footprint`
+  static final int MAP = 56 + 8 * (16 + 3 * 4 + 4); // see `LoxMap.footprint`
+  static final int NUMBER = 16; // a boxed double, never charged but `AllocationProfile` counts them
+
+  private static final int POLL_INTERVAL = 1 << 10;
+
+  // the heap of the script running on this thread, for strings flattening themselves, which can
+  // happen wherever a string gets looked at.
+  static final ThreadLocal<Heap> current = ThreadLocal.withInitial(Heap::disabled);
+
+  // what a collected value was charged, kept in `charges` so it stays reachable itself.
+  private static final class Charge extends PhantomReference<Object> {
+    final long bytes;
+
+    Charge(Object value, long bytes, ReferenceQueue<Object> queue) {
+      super(value, queue);
+      this.bytes = bytes;
+    }
+  }
+
+  private final boolean enabled;
+  private final long limit;
+  private final ReferenceQueue<Object> collected;
+  private final Set<Charge> charges;
+  private final AtomicLong used;
+  private final AtomicLong peak;
+  private int untilPoll = POLL_INTERVAL;
+
+  private Heap(
+      boolean enabled,
+      long limit,
+      ReferenceQueue<Object> collected,
+      Set<Charge> charges,
+      AtomicLong used,
+      AtomicLong peak) {
+    this.enabled = enabled;
+    this.limit = limit;
+    this.collected = collected;
+    this.charges = charges;
+    this.used = used;
+    this.peak = peak;
+  }
+
+  private Heap(boolean enabled, long limit) {
+    this(
+        enabled,
+        limit,
+        new ReferenceQueue<>(),
+        ConcurrentHashMap.newKeySet(),
+        new AtomicLong(),
+        new AtomicLong());
+  }
+
+  Heap(long limit) {
+    this(true, limit);
+  }
+
+  static Heap disabled() {
+    return new Heap(false, Long.MAX_VALUE);
+  }
+
+  // the heap of a worker of `parallelFor`, which charges the same count as this one.
+  Heap fork() {
+    return new Heap(enabled, limit, collected, charges, used, peak);
+  }
+
+  boolean enabled() {
+    return enabled;
+  }
+
+  long used() {
+    return used.get();
+  }
+
+  long peak() {
+    return peak.get();
+  }
+
+  void charge(long bytes) {
+    if (!enabled) return;
+    var now = used.addAndGet(bytes);
+    if (--untilPoll == 0) {
+      untilPoll = POLL_INTERVAL;
+      drain();
+      now = used.get();
+    }
+    if (now > limit) reclaim(bytes);
+    if (now > peak.get()) peak.accumulateAndGet(now, Math::max);
+  }
+
+  void release(long bytes) {
+    if (enabled) used.addAndGet(-bytes);
+  }
+
+  // charges `bytes` for as long as `value` is reachable. nothing is kept when it's over the limit.
+  <T> T chargeUntilCollected(T value, long bytes) {
+    if (!enabled) return value;
+    charge(bytes);
+    charges.add(new Charge(value, bytes, collected));
+    return value;
+  }
+
+  private void drain() {
+    for (var reference = collected.poll(); reference != null; reference = collected.poll()) {
+      final var charge = (Charge) reference;
+      charges.remove(charge);
+      used.addAndGet(-charge.bytes);
+    }
+  }
+
+  // whatever the collector has already let go of doesn't count, the rest does.
+  private void reclaim(long charging) {
+    drain();
+    if (used.get() > limit) {
+      used.addAndGet(-charging);
+      throw new Budget.Exceeded("Exceeded the heap limit of " + limit + " bytes.");
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// a tool attached to an interpreter with `Interpreter.attach`, like `Coverage`. the optimizer asks
+// it about every statement and branch condition it rewrites, function bodies a lazy parse skipped
+// included once they're parsed, and wraps the ones it gets a probe for in `Probed` nodes. that's
+// all instrumenting does: code without probes runs exactly as it would without a tool, and
+// without one there are no probed nodes at all. loops with probes in them aren't fused or traced,
+// so the probes see every iteration.
+interface Instrument {
+  Probe statement(Stmt stmt); // null leaves it alone
+
+  Probe condition(Expr condition); // of an `if`, a `while` or an `and`/`or`
+}
@@ -1,79 +1,361 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   private final boolean isRepl;
+  private final boolean isWorker; // of `parallelFor`, see `Parallel`
+  private final Object owner = new Object(); // marks the environments and collections it creates
   private boolean unwindingLoop = false;
   private final AstPrinter printer = new AstPrinter();
+  private final OutputSink out;
+  private final Budget budget;
+  private final Heap heap;
+  private final AllocationProfile profile;
+  private int calling = 0; // the line of the call being made, while profiling allocations
+  private Instrument instrument = null;
 
-  private final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  private final Globals globals;
+  private Environment environment = null; // null at the top level, where globals live
+  private final Map<Expr.Function, Resolver.Effects> effects = new IdentityHashMap<>();
+  private final Map<Stmt.While, Resolver.LoopEffects> loops = new IdentityHashMap<>();
+  private final Set<String> capturedWrites = new HashSet<>(); // assigned from inner functions
+  private final Set<String> assigned = new HashSet<>(); // assigned anywhere
+  private final Map<Stmt.While, Trace> traces = new IdentityHashMap<>();
+  private final Map<Expr.Function, Resolver.Scopes> deferred = new IdentityHashMap<>();
+  private final Map<Expr.Function, Expr.Function> parsed = new IdentityHashMap<>();
 
   Interpreter(boolean isRepl) {
+    this(isRepl, Budget.unlimited(), Heap.disabled(), AllocationProfile.disabled());
+  }
+
+  Interpreter(boolean isRepl, Budget budget, Heap heap, AllocationProfile profile) {
+    this(isRepl, OutputSink.stdout(), budget, heap, profile);
+  }
+
+  Interpreter(
+      boolean isRepl, OutputSink out, Budget budget, Heap heap, AllocationProfile profile) {
     this.isRepl = isRepl;
+    this.isWorker = false;
+    this.out = out;
+    this.budget = budget;
+    this.heap = heap;
+    this.profile = profile;
+    this.globals = new Globals();
     globals.define(
         "clock",
-        Optional.of(
-            new LoxCallable() {
-              @Override
-              public int arity() {
-                return 0;
-              }
-
-              @Override
-              public Object call(Interpreter _i, List<Object> _a) {
-                return (double) System.currentTimeMillis();
-              }
-
-              @Override
-              public String toString() {
-                return "<native java System.currentTimeMillis>";
-              }
-            }));
+        new LoxCallable() {
+          @Override
+          public int arity() {
+            return 0;
+          }
+
+          @Override
+          public Object call(Interpreter _i, List<Object> _a) {
+            return (double) System.currentTimeMillis();
+          }
+
+          @Override
+          public String toString() {
+            return "<native java System.currentTimeMillis>";
+          }
+        });
     globals.define(
         "sleep",
-        Optional.of(
-            new LoxCallable() {
-              @Override
-              public int arity() {
-                return 1;
-              }
-
-              @Override
-              public Void call(Interpreter _i, List<Object> args) throws RuntimeException {
-                final var a = args.getFirst();
-                if (!(a instanceof Number duration))
-                  throw new RuntimeException("Expected `Number` argument.");
-                try {
-                  Thread.sleep(duration.longValue());
-                } catch (InterruptedException e) {
-                }
-                return null;
-              }
-
-              @Override
-              public String toString() {
-                return "<native java Thread.sleep>";
-              }
-            }));
+        new LoxCallable() {
+          @Override
+          public int arity() {
+            return 1;
+          }
+
+          @Override
+          public Void call(Interpreter interpreter, List<Object> args)
+              throws RuntimeException {
+            final var a = args.getFirst();
+            if (!(a instanceof Number duration))
+              throw new RuntimeException("Expected `Number` argument.");
+            interpreter.flush(); // don't sit on output while the script is idle
+            try {
+              interpreter.budget.sleep(Math.max(duration.longValue(), 0));
+            } catch (InterruptedException e) {
+            }
+            return null;
+          }
+
+          @Override
+          public String toString() {
+            return "<native java Thread.sleep>";
+          }
+        });
+    globals.define(
+        "memoize",
+        new LoxCallable() {
+          @Override
+          public int arity() {
+            return 1;
+          }
+
+          @Override
+          public Object call(Interpreter interpreter, List<Object> args) throws RuntimeException {
+            if (!(args.getFirst() instanceof AnonFunction function))
+              throw new RuntimeException("Can only memoize lox functions.");
+            if (!interpreter.isPure(function, Collections.newSetFromMap(new IdentityHashMap<>())))
+              throw new RuntimeException("Refusing to memoize " + function + ", it isn't pure.");
+            return new MemoizedFunction(function);
+          }
+
+          @Override
+          public String toString() {
+            return "<native memoize>";
+          }
+        });
+
+    define(
+        "list",
+        0,
+        (interpreter, args) ->
+            interpreter.heap.chargeUntilCollected(interpreter.created(new LoxList()), Heap.LIST));
+    define(
+        "push",
+        2,
+        (interpreter, args) -> {
+          final var list = interpreter.writable(list(args.getFirst()));
+          final var before = list.footprint();
+          list.push(args.get(1));
+          interpreter.grown(list, before, list.footprint());
+          return null;
+        });
+    define(
+        "slice",
+        3,
+        (interpreter, args) ->
+            interpreter.charged(
+                interpreter.created(list(args.getFirst()).slice(args.get(1), args.get(2)))));
+    define(
+        "map",
+        0,
+        (interpreter, args) ->
+            interpreter.heap.chargeUntilCollected(interpreter.created(new LoxMap()), Heap.MAP));
+    define("has", 2, (_i, args) -> map(args.getFirst()).has(args.get(1)));
+    define(
+        "remove",
+        2,
+        (interpreter, args) -> interpreter.writable(map(args.getFirst())).remove(args.get(1)));
+    define(
+        "keys",
+        1,
+        (interpreter, args) ->
+            interpreter.charged(interpreter.created(map(args.getFirst()).keys())));
+    // these work on both lists and maps
+    define(
+        "get",
+        2,
+        (_i, args) ->
+            switch (args.getFirst()) {
+              case LoxList list -> list.get(args.get(1));
+              case LoxMap map -> map.get(args.get(1));
+              case null, default -> throw expected("a list or map", args.getFirst());
+            });
+    define(
+        "set",
+        3,
+        (interpreter, args) -> {
+          switch (args.getFirst()) {
+            case LoxList list -> interpreter.writable(list).set(args.get(1), args.get(2));
+            case LoxMap map -> {
+              final var before = interpreter.writable(map).footprint();
+              map.set(args.get(1), args.get(2));
+              interpreter.grown(map, before, map.footprint());
+            }
+            case null, default -> throw expected("a list or map", args.getFirst());
+          }
+          return args.get(2); // like an assignment
+        });
+    define(
+        "length",
+        1,
+        (_i, args) ->
+            (double)
+                switch (args.getFirst()) {
+                  case LoxList list -> list.size();
+                  case LoxMap map -> map.size();
+                  case null, default -> throw expected("a list or map", args.getFirst());
+                });
+    define(
+        "parallelFor",
+        3,
+        (interpreter, args) -> {
+          final var start = number(args.get(0));
+          final var count = (int) Math.max(0, Math.ceil(number(args.get(1)) - start));
+          final var function = function(args.get(2));
+          Parallel.run(interpreter, count, (worker, i) -> worker.call(function, start + i));
+          return null;
+        });
+    define(
+        "parallelMap",
+        2,
+        (interpreter, args) -> {
+          final var list = list(args.getFirst());
+          final var function = function(args.get(1));
+          final var results = new Object[list.size()];
+          Parallel.run(
+              interpreter,
+              results.length,
+              (worker, i) -> results[i] = worker.call(function, list.get((double) i)));
+          final var mapped = interpreter.created(new LoxList());
+          for (var result : results) mapped.push(result);
+          return interpreter.charged(mapped);
+        });
+  }
+
+  // a worker running part of a `parallelFor` on another thread. it shares the globals and the
+  // output with the interpreter that started it and starts out with copies of what the resolver
+  // recorded, everything else it has to itself. what it may write is up to `owns`.
+  private Interpreter(Interpreter parent) {
+    this.isRepl = false;
+    this.isWorker = true;
+    this.out = parent.out;
+    this.budget = parent.budget.fork();
+    this.heap = parent.heap.fork();
+    this.profile = parent.profile.fork();
+    this.instrument = parent.instrument;
+    this.globals = parent.globals;
+    effects.putAll(parent.effects);
+    loops.putAll(parent.loops);
+    capturedWrites.addAll(parent.capturedWrites);
+    assigned.addAll(parent.assigned);
+    deferred.putAll(parent.deferred);
+    parsed.putAll(parent.parsed);
+  }
+
+  Interpreter worker() {
+    return new Interpreter(this);
+  }
+
+  // takes back what a worker used of the budget and what it allocated.
+  void join(Interpreter worker) {
+    budget.join(worker.budget);
+    profile.join(worker.profile);
+  }
+
+  boolean isWorker() {
+    return isWorker;
+  }
+
+  Object owner() {
+    return owner;
+  }
+
+  // whether this interpreter may write to `scope`, or to the globals when it's null. workers only
+  // write to what they created themselves, everything else is shared with the other workers.
+  boolean owns(Environment scope) {
+    return !isWorker || scope != null && scope.owner == owner;
+  }
+
+  private LoxList created(LoxList list) {
+    list.owner = owner;
+    if (profile.enabled()) profile.record(calling, AllocationProfile.Kind.LIST, Heap.LIST);
+    return list;
+  }
+
+  private LoxMap created(LoxMap map) {
+    map.owner = owner;
+    if (profile.enabled()) profile.record(calling, AllocationProfile.Kind.MAP, Heap.MAP);
+    return map;
+  }
+
+  // a list made with its elements already in it, charged for all of it at once.
+  private LoxList charged(LoxList list) {
+    return heap.enabled() ? heap.chargeUntilCollected(list, list.footprint()) : list;
+  }
+
+  // collections are charged again for what their arrays grow by, until they're collected.
+  private void grown(Object collection, long before, long after) {
+    if (after > before) heap.chargeUntilCollected(collection, after - before);
+  }
+
+  private LoxList writable(LoxList list) {
+    if (isWorker && list.owner != owner) throw shared("list");
+    return list;
+  }
+
+  private LoxMap writable(LoxMap map) {
+    if (isWorker && map.owner != owner) throw shared("map");
+    return map;
+  }
+
+  private static RuntimeException shared(String what) {
+    return new RuntimeException(
+        "Can't modify a " + what + " shared with the other parallel workers.");
+  }
+
+  private Object call(LoxCallable function, Object argument) {
+    return function.call(this, Collections.singletonList(argument));
+  }
+
+  private void define(String name, int arity, NativeFunction.Body body) {
+    globals.define(name, new NativeFunction(name, arity, body));
+  }
+
+  private static LoxList list(Object value) {
+    if (value instanceof LoxList list) return list;
+    throw expected("a list", value);
+  }
+
+  private static LoxMap map(Object value) {
+    if (value instanceof LoxMap map) return map;
+    throw expected("a map", value);
+  }
+
+  private static double number(Object value) {
+    if (value instanceof Double number) return number;
+    throw expected("a number", value);
+  }
+
+  private static LoxCallable function(Object value) {
+    if (value instanceof LoxCallable function && function.arity() == 1) return function;
+    throw expected("a function of one argument", value);
   }
 
+  private static RuntimeException expected(String what, Object value) {
+    return new RuntimeException("Expected " + what + " but got " + stringify(value) + ".");
+  }
+
+  // the offending expression is only rendered if someone actually reads the message.
   class RuntimeError extends RuntimeException {
     final Token token;
+    private final transient Expr expr;
+    private String message = null;
 
     RuntimeError(Expr expr, Token token, String message) {
-      super(Optional.ofNullable(expr).map(e -> printer.print(e) + ": ").orElse("") + message);
+      super(message);
       this.token = token;
+      this.expr = expr;
     }
 
     RuntimeError(Token token, String message) {
-      super(message);
+      this(null, token, message);
+    }
+
+    RuntimeError(Token token, RuntimeException cause) {
+      super(null, cause);
       this.token = token;
+      this.expr = null;
+    }
+
+    @Override
+    public String getMessage() {
+      if (message == null) {
+        final var detail = getCause() != null ? getCause().getMessage() : super.getMessage();
+        message = expr == null ? detail : printer.print(expr) + ": " + detail;
+      }
+      return message;
     }
   }
 
@@ -87,31 +369,162 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   void interpret(List<Stmt> statements) {
+    budget.start();
+    final var previous = Heap.current.get(); // the daemon's threads run other scripts too
+    Heap.current.set(heap);
     try {
       for (var statement : statements) execute(statement);
     } catch (RuntimeError error) {
+      out.flush(); // keep stdout ahead of the error report
       Lox.runtimeError(error);
+    } catch (Budget.Exceeded exceeded) {
+      out.flush();
+      Lox.budgetExceeded(exceeded);
+    } finally {
+      out.flush();
+      Heap.current.set(previous);
+    }
+  }
+
+  // the workers of `parallelFor` share the output.
+  void flush() {
+    synchronized (out) {
+      out.flush();
     }
   }
 
   private void execute(Stmt stmt) {
+    budget.statements++;
     stmt.accept(this);
   }
 
-  void resolve(Expr expr, int hops) {
-    locals.put(expr, hops);
+  Budget budget() {
+    return budget;
   }
 
-  private String stringify(Object object) {
-    if (object == null) return "nil";
+  Heap heap() {
+    return heap;
+  }
+
+  AllocationProfile profile() {
+    return profile;
+  }
+
+  // the code optimized for this interpreter from then on gets the tool's probes, so it has to be
+  // attached before the script is.
+  void attach(Instrument instrument) {
+    this.instrument = instrument;
+  }
+
+  Instrument instrument() {
+    return instrument;
+  }
+
+  Globals globals() {
+    return globals;
+  }
+
+  void effects(Expr.Function function, Resolver.Effects effects) {
+    this.effects.put(function, effects);
+  }
+
+  void loopEffects(Stmt.While loop, Resolver.LoopEffects effects) {
+    loops.put(loop, effects);
+  }
 
-    if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0")) {
-        text = text.substring(0, text.length() - 2);
+  Resolver.LoopEffects loopEffects(Stmt.While loop) {
+    return loops.get(loop);
+  }
+
+  void deferred(Expr.Function function, Resolver.Scopes scopes) {
+    deferred.put(function, scopes);
+  }
+
+  // a function whose body was skipped by a lazy parse, with the body parsed, resolved and
+  // optimized the first time it's needed. null if the body has syntax errors.
+  Expr.Function parsed(Expr.Function function) {
+    if (function.body() != null) return function;
+    final var cached = parsed.get(function);
+    if (cached != null) return cached;
+    flush(); // keep stdout ahead of any syntax errors the body has
+    final var body = function.lazy().parse();
+    if (body == null) return null;
+    final var resolved =
+        new Resolver(this).resolveDeferred(function, body, deferred.get(function));
+    final var definition = new Optimizer(this).optimize(resolved);
+    parsed.put(function, definition);
+    return definition;
+  }
+
+  void capturedWrite(String name) {
+    capturedWrites.add(name);
+  }
+
+  void assigned(String name) {
+    assigned.add(name);
+  }
+
+  boolean isCapturedWrite(String name) {
+    return capturedWrites.contains(name);
+  }
+
+  // carries over what the resolver recorded about a node the optimizer rebuilt.
+  <T extends Expr> T replaced(T original, T replacement) {
+    if (original instanceof Expr.Variable variable) {
+      ((Expr.Variable) replacement).depth = variable.depth;
+    } else if (original instanceof Expr.Assign assign) {
+      ((Expr.Assign) replacement).depth = assign.depth;
+    }
+    final var analysis = original instanceof Expr.Function f ? effects.get(f) : null;
+    if (analysis != null) effects.put((Expr.Function) replacement, analysis);
+    return replacement;
+  }
+
+  // a function is pure if the resolver saw no side effects in its body, nothing assigns what it
+  // reads from outside and every global it calls is currently bound to something pure (rebinding
+  // one to its memoized self is fine). what's assigned is known by name only, so a local of the
+  // same name being assigned counts too, and in the repl a later line can assign anything.
+  // natives are assumed impure, and running into a function that's already being checked
+  // (recursion) doesn't make the caller impure.
+  private boolean isPure(LoxCallable callable, Set<Expr.Function> visiting) {
+    if (callable instanceof MemoizedFunction) return true; // checked when it was created
+    if (!(callable instanceof AnonFunction function)) return false;
+
+    final var definition = function.definition(this);
+    if (definition == null) return false; // its body has syntax errors
+    if (!visiting.add(definition)) return true;
+    final var analysis = effects.get(definition);
+    if (analysis == null || analysis.impure()) return false;
+    for (var name : analysis.reads()) {
+      if (!analysis.calls().contains(name) && (isRepl || assigned.contains(name))) return false;
+    }
+    for (var name : analysis.calls()) {
+      if (!(globals.get(name) instanceof LoxCallable callee && isPure(callee, visiting))) {
+        return false;
       }
-      return text;
     }
+    return true;
+  }
+
+  // whether a call to the global `callee` gives the same result for as long as a loop that writes
+  // no globals runs: it has to be pure, and none of the globals it ends up calling may be
+  // rebound by a function the loop calls.
+  private boolean isStable(Expr.Variable callee) {
+    final var visiting = Collections.<Expr.Function>newSetFromMap(new IdentityHashMap<>());
+    final var function = globals.get(callee.global, callee.name().lexeme());
+    if (!(function instanceof LoxCallable callable && isPure(callable, visiting))) return false;
+    for (var definition : visiting) {
+      for (var name : effects.get(definition).calls()) {
+        if (capturedWrites.contains(name)) return false;
+      }
+    }
+    return true;
+  }
+
+  static String stringify(Object object) {
+    if (object == null) return "nil";
+
+    if (object instanceof Double number) return OutputSink.format(number);
 
     return object.toString();
   }
@@ -120,10 +533,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return expr.accept(this);
   }
 
+  private void define(Token name, Optional<Object> value) {
+    if (environment == null) {
+      globals.define(name.lexeme(), value.orElse(null));
+    } else if (environment.define(name.lexeme(), value)) {
+      heap.charge(Heap.VARIABLE);
+      if (profile.enabled()) {
+        profile.record(name.line(), AllocationProfile.Kind.VARIABLE, Heap.VARIABLE);
+      }
+    }
+  }
+
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    final var function = new LoxFunction(stmt, environment);
-    environment.define(stmt.name().lexeme(), Optional.of(function));
+    final var function = closure(new LoxFunction(stmt, environment), stmt.name().line());
+    define(stmt.name(), Optional.of(function));
     return null;
   }
 
@@ -140,13 +564,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
-    System.out.println(stringify(evaluate(stmt.expression())));
+    print(evaluate(stmt.expression()));
     return null;
   }
 
+  void print(Object value) {
+    synchronized (out) {
+      if (value instanceof Double number) {
+        out.print(number);
+      } else {
+        out.print(stringify(value));
+      }
+      out.newline();
+    }
+  }
+
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    environment.define(stmt.name().lexeme(), stmt.initializer().map(this::evaluate));
+    final var initializer = stmt.initializer();
+    final var value = initializer == null ? null : evaluate(initializer);
+    define(stmt.name(), Optional.ofNullable(value));
     return null;
   }
 
@@ -162,8 +599,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    final var k = expr.operator().kind();
+    if (expr.operand == Types.Type.NUMBER && k == TokenKind.MINUS) {
+      if (profile.enabled()) boxed(expr.operator());
+      return -number(expr.right());
+    }
+    if (expr.operand == Types.Type.BOOLEAN && k == TokenKind.BANG) {
+      return !(boolean) evaluate(expr.right());
+    }
+    final var value = unary(expr, evaluate(expr.right()));
+    if (profile.enabled() && value instanceof Double) boxed(expr.operator());
+    return value;
+  }
+
+  Object unary(Expr.Unary expr, Object operand) {
     final var operator = expr.operator();
-    final var operand = evaluate(expr.right());
     final var k = operator.kind();
     return switch (k) {
       case MINUS -> {
@@ -194,13 +644,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
           "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
     }
 
+    final var bytes = Heap.ARGUMENTS + Heap.ARGUMENT * arguments.size();
+    heap.charge(bytes);
+    if (profile.enabled()) {
+      calling = expr.paren().line();
+      profile.record(calling, AllocationProfile.Kind.ARGUMENTS, bytes);
+    }
     try {
       return function.call(this, arguments);
+    } catch (Budget.Exceeded e) {
+      throw e;
     } catch (RuntimeException e) {
-      throw new RuntimeError(expr.paren(), e.getMessage());
+      throw callFailed(expr, e);
+    } finally {
+      heap.release(bytes);
     }
   }
 
+  RuntimeError callFailed(Expr.Call expr, RuntimeException cause) {
+    return new RuntimeError(expr.paren(), cause);
+  }
+
   @Override
   public Object visitLogicalExpr(Expr.Logical expr) {
     final var left = evaluate(expr.left());
@@ -217,10 +681,62 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    final var operator = expr.operator();
+    final var value = evaluateBinary(expr);
+    if (profile.enabled() && value instanceof Double) boxed(expr.operator());
+    return value;
+  }
+
+  private void boxed(Token token) {
+    profile.record(token.line(), AllocationProfile.Kind.NUMBER, Heap.NUMBER);
+  }
+
+  private Object evaluateBinary(Expr.Binary expr) {
+    if (expr.operands == Types.Type.NUMBER) return arithmetic(expr);
     final var left = evaluate(expr.left());
     final var right = evaluate(expr.right());
+    if (expr.operands == Types.Type.STRING && expr.operator().kind() == TokenKind.PLUS) {
+      return concat(expr, (LoxString) left, (LoxString) right);
+    }
+    return binary(expr, left, right);
+  }
+
+  // both operands are known to be numbers, none of the operators can fail on them.
+  private Object arithmetic(Expr.Binary expr) {
+    final var left = number(expr.left());
+    final var right = number(expr.right());
+    return switch (expr.operator().kind()) {
+      case PLUS -> left + right;
+      case MINUS -> left - right;
+      case SLASH -> left / right;
+      case STAR -> left * right;
+      case GREATER -> left > right;
+      case GREATER_EQUAL -> left >= right;
+      case LESS -> left < right;
+      case LESS_EQUAL -> left <= right;
+      case BANG_EQUAL -> Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+      case EQUAL_EQUAL -> Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+      default -> binary(expr, left, right);
+    };
+  }
+
+  // evaluates an expression `Types` found is always a number, without boxing the arithmetic it's
+  // made of.
+  private double number(Expr expr) {
+    while (expr instanceof Expr.Grouping grouping) expr = grouping.expression();
+    if (!(expr instanceof Expr.Binary binary) || binary.operands != Types.Type.NUMBER) {
+      return (double) evaluate(expr);
+    }
+    return switch (binary.operator().kind()) {
+      case PLUS -> number(binary.left()) + number(binary.right());
+      case MINUS -> number(binary.left()) - number(binary.right());
+      case SLASH -> number(binary.left()) / number(binary.right());
+      case STAR -> number(binary.left()) * number(binary.right());
+      default -> (double) evaluate(expr);
+    };
+  }
 
+  Object binary(Expr.Binary expr, Object left, Object right) {
+    final var operator = expr.operator();
     final var k = operator.kind();
     try {
       return switch (k) {
@@ -228,8 +744,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
           if (left instanceof Double && right instanceof Double) {
             yield (double) left + (double) right;
           }
-          if (left instanceof String && right instanceof String) {
-            yield (String) left + (String) right;
+          if (left instanceof LoxString l && right instanceof LoxString r) {
+            yield concat(expr, l, r);
           }
           throw new RuntimeError(expr, operator, "type mismatch between operands");
         }
@@ -260,22 +776,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitFunctionExpr(Expr.Function expr) {
-    return new AnonFunction(expr, environment);
+    return closure(new AnonFunction(expr, environment), Lines.of(expr));
   }
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
     final var name = expr.name();
     final var key = name.lexeme();
-    return lookUpVariable(key, expr)
-        .orElseThrow(
-            () -> new RuntimeError(expr, name, "Identifier `" + key + "` used before assignment"));
+    final var value =
+        expr.depth >= 0
+            ? environment.getAt(expr.depth, key).orElse(null)
+            : globals.get(expr.global, key);
+    if (value == null) throw unassigned(expr);
+    return value;
   }
 
-  private Optional<Object> lookUpVariable(String name, Expr expr) {
-    return Optional.ofNullable(locals.get(expr))
-        .map(d -> environment.getAt(d, name))
-        .orElseGet(() -> globals.get(name));
+  RuntimeError unassigned(Expr.Variable expr) {
+    final var name = expr.name();
+    return new RuntimeError(
+        expr, name, "Identifier `" + name.lexeme() + "` used before assignment");
   }
 
   @Override
@@ -284,24 +803,103 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     final var key = name.lexeme();
     final var value = evaluate(expr.value()); // ! side effects always trigger
 
-    Optional.ofNullable(locals.get(expr))
-        .ifPresentOrElse(
-            d -> environment.assignAt(d, key, value),
-            () -> {
-              if (!globals.assign(key, value))
-                throw new RuntimeError(expr, name, "Undefined variable `" + key + "`.");
-            });
+    if (expr.depth >= 0) {
+      final var scope = environment.ancestor(expr.depth);
+      if (!owns(scope)) throw sharedWrite(expr);
+      scope.assign(key, value);
+    } else if (!owns(null)) {
+      throw sharedWrite(expr);
+    } else if (!globals.assign(expr.global, key, value)) {
+      throw new RuntimeError(expr, name, "Undefined variable `" + key + "`.");
+    }
 
     return value;
   }
 
-  private boolean isTruthy(Object value) {
+  private RuntimeError sharedWrite(Expr.Assign expr) {
+    final var name = expr.name();
+    return new RuntimeError(
+        expr,
+        name,
+        "Can't assign `"
+            + name.lexeme()
+            + "` from a parallel worker, it's shared with the others.");
+  }
+
+  @Override
+  public Object visitIncrementExpr(Expr.Increment expr) {
+    final var assign = expr.assign();
+    final var key = assign.name().lexeme();
+    final var scope = environment.ancestor(expr.depth());
+    if (!(scope.get(key) instanceof Double value) || !owns(scope)) {
+      return visitAssignExpr(assign);
+    }
+    final Double result = value + expr.delta();
+    if (profile.enabled()) boxed(assign.name());
+    scope.assign(key, result);
+    return result;
+  }
+
+  // computed on first use rather than ahead of the loop, so a loop that never gets there doesn't
+  // evaluate it and errors surface where they always did.
+  @Override
+  public Object visitInvariantExpr(Expr.Invariant expr) {
+    if (isWorker) return evaluate(expr.expression()); // the cells are shared with the others
+    final var cell = expr.cell();
+    if (cell.value == Optimizer.Cell.EMPTY) {
+      if (!expr.callees().stream().allMatch(this::isStable)) {
+        cell.value = Optimizer.Cell.UNCACHED;
+      } else {
+        final var value = evaluate(expr.expression());
+        cell.value = value;
+        return value;
+      }
+    }
+    return cell.value == Optimizer.Cell.UNCACHED ? evaluate(expr.expression()) : cell.value;
+  }
+
+  @Override
+  public Object visitCompareExpr(Expr.Compare expr) {
+    return test(expr);
+  }
+
+  // non-numbers, nil included, go through the generic operator for its errors.
+  private boolean test(Expr.Compare expr) {
+    final var binary = expr.binary();
+    final var left = local(expr.leftDepth(), binary.left());
+    final var right =
+        expr.rightDepth() >= 0
+            ? local(expr.rightDepth(), binary.right())
+            : binary.right() instanceof Expr.Literal literal
+                ? literal.value()
+                : evaluate(binary.right()); // hoisted out of the loop
+    if (!(left instanceof Double l && right instanceof Double r)) {
+      return isTruthy(binary(binary, left, right));
+    }
+    return switch (binary.operator().kind()) {
+      case LESS -> l < r;
+      case LESS_EQUAL -> l <= r;
+      case GREATER -> l > r;
+      case GREATER_EQUAL -> l >= r;
+      default -> throw new RuntimeException("unreachable");
+    };
+  }
+
+  // nil is how an unassigned variable reads, like in `visitVariableExpr`.
+  private Object local(int depth, Expr operand) {
+    final var variable = (Expr.Variable) operand;
+    final var value = environment.ancestor(depth).get(variable.name().lexeme());
+    if (value == null) throw unassigned(variable);
+    return value;
+  }
+
+  static boolean isTruthy(Object value) {
     if (value == null) return false; // null is a bitch in java :(
     // the book only considers nil and false as falsey, i'm adding zero too
     return !(value.equals(false) || value.equals(0.0));
   }
 
-  private boolean isEqual(Object left, Object right) {
+  static boolean isEqual(Object left, Object right) {
     if (left == null && right == null) return true;
     if (left == null || right == null) return false;
     return left.equals(right); // this mean NaN equals NaN
@@ -318,9 +916,92 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    var iterations = 0;
     while (isTruthy(evaluate(stmt.condition()))) {
       execute(stmt.body());
       if (unwindingLoop) return null;
+      budget.backEdge();
+      if (++iterations == Trace.HOT_LOOP && traced(stmt)) return null;
+    }
+    return null;
+  }
+
+  // runs the rest of a hot loop from its trace, recording one first. a trace that doesn't fit
+  // the variables the loop runs with this time gets recorded again, a few times at most. the repl
+  // echoes expression statements, which traces don't.
+  private boolean traced(Stmt.While loop) {
+    if (isRepl) return false;
+    var trace = traces.get(loop);
+    if (trace == null || trace.recordings() < Trace.MAX_RECORDINGS && !trace.fits(environment)) {
+      trace = Trace.record(this, loop, environment, trace == null ? 1 : trace.recordings() + 1);
+      traces.put(loop, trace);
+    }
+    return trace.run(environment);
+  }
+
+  // the same steps `visitWhileStmt` takes through `stmt.loop()`, the block wrapped around the
+  // body and increment included, minus the dispatch.
+  @Override
+  public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+    final var step = stmt.step();
+    final var increment = (Expr.Increment) step.expression();
+    var iterations = 0;
+    while (test(stmt.condition())) {
+      if (unwindingLoop) return null;
+      final var previous = environment;
+      environment = new Environment(previous, owner);
+      enter(environment, stmt.body().statements());
+      try {
+        execute(stmt.body());
+        if (unwindingLoop) return null;
+        if (isRepl) {
+          execute(step); // echoes the value
+        } else {
+          visitIncrementExpr(increment);
+        }
+      } finally {
+        leave(environment);
+        environment = previous;
+      }
+      budget.backEdge();
+      if (++iterations == Trace.HOT_LOOP && traced(stmt.loop())) return null;
+    }
+    return null;
+  }
+
+  @Override
+  public Object visitProbedExpr(Expr.Probed expr) {
+    final var value = evaluate(expr.expression());
+    expr.probe().exit(this, value);
+    return value;
+  }
+
+  // counted as one statement by `execute`.
+  @Override
+  public Void visitProbedStmt(Stmt.Probed stmt) {
+    stmt.probe().enter(this);
+    stmt.statement().accept(this);
+    return null;
+  }
+
+  // every run of the loop starts with empty cells. the ones of an outer run of the same loop (a
+  // recursive call made from inside it) are put back afterwards.
+  @Override
+  public Void visitHoistedStmt(Stmt.Hoisted stmt) {
+    if (isWorker) { // the cells are shared with the others
+      execute(stmt.loop());
+      return null;
+    }
+    final var cells = stmt.cells();
+    final var saved = new Object[cells.size()];
+    for (int i = 0; i < saved.length; i++) {
+      saved[i] = cells.get(i).value;
+      cells.get(i).value = Optimizer.Cell.EMPTY;
+    }
+    try {
+      execute(stmt.loop());
+    } finally {
+      for (int i = 0; i < saved.length; i++) cells.get(i).value = saved[i];
     }
     return null;
   }
@@ -329,11 +1010,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public Void visitBlockStmt(Stmt.Block stmt) {
     if (!stmt.enclosedInLoop()) unwindingLoop = false; // we're done unwinding our loops
     if (unwindingLoop) return null;
-    executeBlock(stmt.statements(), new Environment(environment));
+    executeBlock(stmt.statements(), new Environment(environment, owner));
     return null;
   }
 
   void executeBlock(List<Stmt> statements, Environment environment) {
+    enter(environment, statements);
     final var previous = this.environment;
     try {
       this.environment = environment;
@@ -343,15 +1025,61 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     } finally {
       this.environment = previous;
+      leave(environment);
+    }
+  }
+
+  // a scope is charged for its environment and the variables it starts out with (parameters)
+  // when it's entered, and for each one it declares as it goes, see `define`. the profile puts
+  // it on the line its first statement is on.
+  private void enter(Environment scope, List<Stmt> statements) {
+    if (heap.enabled()) heap.charge(footprint(scope));
+    if (profile.enabled()) {
+      final var line = Lines.of(statements);
+      profile.record(line, AllocationProfile.Kind.ENVIRONMENT, footprint(scope));
     }
   }
 
+  // an environment a closure captured outlives its scope, it stays charged until it's collected.
+  private void leave(Environment scope) {
+    if (!heap.enabled()) return;
+    heap.release(footprint(scope));
+    if (scope.captured) heap.chargeUntilCollected(scope, footprint(scope));
+  }
+
+  private static long footprint(Environment scope) {
+    return Heap.ENVIRONMENT + (long) Heap.VARIABLE * scope.size();
+  }
+
+  private <T extends AnonFunction> T closure(T function, int line) {
+    if (profile.enabled()) profile.record(line, AllocationProfile.Kind.FUNCTION, Heap.FUNCTION);
+    if (!heap.enabled()) return function;
+    for (var scope = environment; scope != null && !scope.captured; scope = scope.enclosing) {
+      scope.captured = true;
+    }
+    return heap.chargeUntilCollected(function, Heap.FUNCTION);
+  }
+
+  private LoxString concat(Expr.Binary expr, LoxString left, LoxString right) {
+    if (left.length() + right.length() < 0) {
+      throw new RuntimeError(expr, expr.operator(), "String too long.");
+    }
+    final var result = left.concat(right);
+    if (result == left || result == right) return result;
+    if (profile.enabled()) {
+      profile.record(
+          expr.operator().line(), AllocationProfile.Kind.STRING, result.allocated());
+    }
+    if (!heap.enabled()) return result;
+    return heap.chargeUntilCollected(result, result.allocated());
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition()))) {
       execute(stmt.thenBranch());
-    } else {
-      stmt.elseBranch().ifPresent(this::execute);
+    } else if (stmt.elseBranch() != null) {
+      execute(stmt.elseBranch());
     }
     return null;
   }
@@ -364,6 +1092,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
-    throw new Return(stmt.value().map(this::evaluate));
+    final var value = stmt.value();
+    throw new Return(Optional.ofNullable(value == null ? null : evaluate(value)));
   }
 }
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.Set;
+
+// the tokens of a function body the parser skipped with `--lazy`, from its `{` to its `}`.
+// they're parsed the first time the function is called, and the result is shared by every
+// interpreter running the script, so only the tree is kept here: resolving and optimizing it are
+// up to each interpreter. `assigned` are the names the body might assign, which is all the
+// resolver needs to know about it until then.
+final class LazyBody {
+  private List<Token> tokens; // dropped once parsed
+  private final Set<String> assigned;
+  private Stmt.Block body = null;
+
+  LazyBody(List<Token> tokens, Set<String> assigned) {
+    this.tokens = tokens;
+    this.assigned = assigned;
+  }
+
+  Set<String> assigned() {
+    return assigned;
+  }
+
+  // the body if it has been parsed already, null otherwise. never parses or reports anything.
+  synchronized Stmt.Block parsed() {
+    return body;
+  }
+
+  // null after reporting syntax errors, which get reported again on the next try.
+  synchronized Stmt.Block parse() {
+    if (body == null) {
+      body = new Parser(tokens, /* lazy: */ true).functionBody();
+      if (body != null) tokens = null;
+    }
+    return body;
+  }
+}
@@ -0,0 +1,56 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// the line a statement or expression is on, near enough for attributing what it does to a line:
+// that of its first token with a line, or its operator's. 0 if it has no tokens to go by.
+final class Lines {
+  private Lines() {}
+
+  static int of(List<Stmt> statements) {
+    for (var statement : statements) {
+      final var line = ofStmt(statement);
+      if (line > 0) return line;
+    }
+    return 0;
+  }
+
+  static int ofStmt(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.Block block -> of(block.statements());
+      case Stmt.Expression expression -> of(expression.expression());
+      case Stmt.Print print -> of(print.expression());
+      case Stmt.Var var -> var.name().line();
+      case Stmt.If conditional -> of(conditional.condition());
+      case Stmt.While loop -> of(loop.condition());
+      case Stmt.Hoisted hoisted -> ofStmt(hoisted.loop());
+      case Stmt.CountedLoop loop -> ofStmt(loop.loop());
+      case Stmt.Return ret -> ret.keyword().line();
+      case Stmt.Function function -> function.name().line();
+      case Stmt.Probed probed -> ofStmt(probed.statement());
+      default -> 0; // break
+    };
+  }
+
+  static int of(Expr expr) {
+    return switch (expr) {
+      case Expr.Binary binary -> binary.operator().line();
+      case Expr.Logical logical -> logical.operator().line();
+      case Expr.Unary unary -> unary.operator().line();
+      case Expr.Grouping grouping -> of(grouping.expression());
+      case Expr.If conditional -> of(conditional.condition());
+      case Expr.Variable variable -> variable.name().line();
+      case Expr.Assign assign -> assign.name().line();
+      case Expr.Call call -> call.paren().line();
+      case Expr.Increment increment -> of(increment.assign());
+      case Expr.Compare compare -> of(compare.binary());
+      case Expr.Invariant invariant -> of(invariant.expression());
+      case Expr.Probed probed -> of(probed.expression());
+      case Expr.Function function -> {
+        if (!function.params().isEmpty()) yield function.params().getFirst().line();
+        yield function.body() != null ? of(function.body().statements()) : 0;
+      }
+      default -> 0; // literals
+    };
+  }
+}
@@ -1,34 +1,168 @@
 package com.craftinginterpreters.lox;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Lox {
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  // where a run reports its errors. the daemon's workers and `--check` set one up for every script
+  // they go through, everything else reports to the process' stderr.
+  static final ThreadLocal<Diagnostics> diagnostics =
+      ThreadLocal.withInitial(() -> diagnostics(System.err, null));
+
+  static boolean fused = false; // scan, parse and resolve scripts in a single pass
+  private static boolean compile = false; // save the parsed script as a `FlatAst` instead
+  private static boolean lazy = false; // parse function bodies when they're first called
+  private static long maxStatements = Long.MAX_VALUE;
+  private static long maxCalls = Long.MAX_VALUE;
+  private static long timeoutMillis = Long.MAX_VALUE;
+  private static long maxHeap = Long.MAX_VALUE;
+  private static boolean heapStats = false; // report heap use once a script finishes
+  private static boolean profileAlloc = false; // report where a script allocated once it finishes
+  private static boolean coverage = false; // report which lines and branches a script ran
+  private static int maxErrors = Integer.MAX_VALUE; // diagnostics written out per script
+  private static boolean check = false; // only parse and resolve the scripts, in parallel
+  private static String serve = null; // socket to run scripts sent to it from
+  private static String client = null; // socket to send the script to
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    var i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      switch (args[i]) {
+        case "--fused" -> fused = true;
+        case "--compile" -> compile = true;
+        case "--lazy" -> lazy = true;
+        case "--max-statements" -> maxStatements = limit(args, ++i);
+        case "--max-calls" -> maxCalls = limit(args, ++i);
+        case "--timeout" -> timeoutMillis = limit(args, ++i, Long.MAX_VALUE / 1_000_000);
+        case "--max-heap" -> maxHeap = limit(args, ++i);
+        case "--heap-stats" -> heapStats = true;
+        case "--profile-alloc" -> profileAlloc = true;
+        case "--coverage" -> coverage = true;
+        case "--max-errors" -> maxErrors = (int) Math.min(limit(args, ++i), Integer.MAX_VALUE);
+        case "--check" -> check = true;
+        case "--serve" -> serve = argument(args, ++i);
+        case "--client" -> client = argument(args, ++i);
+        default -> usage();
+      }
+    }
+
+    conflicts(args.length > i && args[i].endsWith(".loxc"));
+    if (check) {
+      if (args.length == i || serve != null || client != null) usage();
+      System.exit(check(List.of(args).subList(i, args.length)));
+    } else if (args.length - i > 1 || serve != null && (client != null || args.length > i)) {
+      usage();
+    } else if (serve != null) {
+      System.exit(Daemon.serve(Path.of(serve)));
+    } else if (client != null) {
+      if (args.length == i) usage();
+      System.exit(Daemon.send(Path.of(client), args[i]));
+    } else if (args.length - i == 1) {
+      final var status = runFile(args[i]);
+      diagnostics().flush();
+      if (status != 0) System.exit(status);
     } else {
       runPrompt();
       System.out.println("\ngoodbye :)");
     }
   }
 
+  private static void usage() {
+    System.out.println(
+        "Usage: jlox [--fused] [--compile] [--lazy] [--max-statements N] [--max-calls N]"
+            + " [--timeout MS] [--max-heap BYTES] [--heap-stats] [--profile-alloc] [--coverage]"
+            + " [--max-errors N] [--serve SOCKET | --client SOCKET] [script]\n"
+            + "       jlox [--max-errors N] --check script...");
+    System.exit(64);
+  }
+
+  // --fused, --compile and --lazy each pick how the script gets read. --check reads them its own
+  // way, a --client leaves it to the daemon and a compiled script has already been read.
+  private static void conflicts(boolean compiled) {
+    final var readers = new ArrayList<String>();
+    if (fused) readers.add("--fused");
+    if (compile) readers.add("--compile");
+    if (lazy) readers.add("--lazy");
+    if (check) readers.add("--check");
+    if (client != null) readers.add("--client");
+    if (compiled) readers.add("a compiled script");
+    if (readers.size() > 1 && (fused || compile || lazy)) {
+      System.err.println(
+          "Error: Can't combine " + readers.get(0) + " with " + readers.get(1) + ".");
+      System.exit(64);
+    }
+  }
+
+  private static long limit(String[] args, int i) {
+    return limit(args, i, Long.MAX_VALUE);
+  }
+
+  private static long limit(String[] args, int i, long max) {
+    try {
+      final var limit = Long.parseLong(args[i]);
+      if (limit >= 0 && limit <= max) return limit;
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+    }
+    usage();
+    return 0;
+  }
+
+  private static String argument(String[] args, int i) {
+    if (i >= args.length) usage();
+    return args[i];
+  }
+
+  private static Budget budget() {
+    return new Budget(maxStatements, maxCalls, timeoutMillis);
+  }
+
+  private static Heap heap() {
+    return maxHeap != Long.MAX_VALUE || heapStats ? new Heap(maxHeap) : Heap.disabled();
+  }
+
+  private static AllocationProfile profile() {
+    return profileAlloc ? new AllocationProfile() : AllocationProfile.disabled();
+  }
+
+  private static void reportHeap(Interpreter interpreter) {
+    if (!heapStats) return;
+    final var heap = interpreter.heap();
+    diagnostics().err.println(
+        "[heap] " + heap.used() + " bytes in use, " + heap.peak() + " bytes at peak");
+  }
+
+  private static void reportAllocations(Interpreter interpreter) {
+    if (profileAlloc) interpreter.profile().report(diagnostics().err);
+  }
+
+  private static void instrument(Interpreter interpreter) {
+    if (coverage) interpreter.attach(new Coverage());
+  }
+
+  private static void reportCoverage(Interpreter interpreter) {
+    if (interpreter.instrument() instanceof Coverage lines) lines.report(diagnostics().err);
+  }
+
   private static void runPrompt() throws IOException {
     final var input = new InputStreamReader(System.in);
     final var reader = new BufferedReader(input);
     final var printer = new AstPrinter();
-    final var repl = new Interpreter(/* isRepl: */ true);
+    final var repl = new Interpreter(/* isRepl: */ true, budget(), heap(), profile());
+    instrument(repl);
     final var resolver = new Resolver(repl);
+    final var optimizer = new Optimizer(repl);
 
     while (true) {
       System.out.print(">>> ");
@@ -40,56 +174,169 @@ public class Lox {
 
       final var parser = new Parser(tokens);
       final var stmts = parser.parse();
+      final var diagnostics = diagnostics();
+      diagnostics.flush(); // ahead of the tree
       if (stmts.size() < 1) continue;
-      System.out.println(printer.print(stmts));
+      printer.print(stmts, System.out);
+      System.out.println();
 
-      if (!hadError) resolver.resolve(stmts);
-      if (!hadError) repl.interpret(stmts);
-
-      hadError = false;
-      hadRuntimeError = false;
+      if (!diagnostics.hadError()) resolver.resolve(stmts);
+      if (!diagnostics.hadError()) repl.interpret(optimizer.optimize(stmts));
+      diagnostics.flush();
+      if (!diagnostics.hadError()) reportHeap(repl);
+      diagnostics.reset();
     }
+    reportAllocations(repl);
+    reportCoverage(repl);
   }
 
-  private static void runFile(String path) throws IOException {
+  // returns the exit status.
+  private static int runFile(String path) throws IOException {
+    if (path.endsWith(".loxc")) {
+      return run(readCompiled(Paths.get(path)).toTree(), OutputSink.stdout());
+    }
+
     final var bytes = Files.readAllBytes(Paths.get(path));
+    if (fused) {
+      return runFused(new String(bytes, Charset.defaultCharset()), OutputSink.stdout());
+    }
+
+    final var stmts = parse(new String(bytes, Charset.defaultCharset()));
+    if (stmts == null) return 65;
+
+    if (compile) {
+      final var target = Paths.get(path.replaceFirst("(\\.lox)?$", ".loxc"));
+      try (final var out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+        FlatAst.of(stmts).write(out);
+      }
+      return 0;
+    }
+
+    return run(stmts, OutputSink.stdout());
+  }
 
-    final var scanner = new Scanner(new String(bytes, Charset.defaultCharset()));
+  // null after reporting syntax errors. a lazy parse only reports those outside of function
+  // bodies.
+  static List<Stmt> parse(String source) {
+    final var scanner = new Scanner(source);
     final var tokens = scanner.scanTokens();
 
-    final var parser = new Parser(tokens);
-    final var stmts = parser.parse(); // we're doing only one expression
-    if (hadError) System.exit(65);
+    final var parser = new Parser(tokens, lazy);
+    final var stmts = parser.parse();
+    return diagnostics().hadError() ? null : stmts;
+  }
+
+  static FlatAst readCompiled(Path path) throws IOException {
+    try (final var in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      return FlatAst.read(in);
+    }
+  }
 
-    final var interpreter = new Interpreter(/* isRepl: */ false);
+  // runs a parsed script in an interpreter of its own, nothing in `stmts` is changed by it.
+  static int run(List<Stmt> stmts, OutputSink out) {
+    final var interpreter =
+        new Interpreter(/* isRepl: */ false, out, budget(), heap(), profile());
+    instrument(interpreter);
     final var resolver = new Resolver(interpreter);
 
     resolver.resolve(stmts);
-    if (hadError) System.exit(75);
+    if (diagnostics().hadError()) return 75;
+
+    interpreter.interpret(new Optimizer(interpreter).optimize(stmts));
+    diagnostics().flush(); // ahead of the reports
+    reportHeap(interpreter);
+    reportAllocations(interpreter);
+    reportCoverage(interpreter);
+    return diagnostics().hadRuntimeError() ? 70 : 0;
+  }
+
+  static int runFused(String source, OutputSink out) {
+    final var interpreter =
+        new Interpreter(/* isRepl: */ false, out, budget(), heap(), profile());
+    instrument(interpreter);
+    final var parser = new Parser(new Scanner(source), new Resolver(interpreter));
+    final var stmts = parser.parse();
+    if (diagnostics().hadSyntaxError()) return 65;
+    if (diagnostics().hadError()) return 75; // like `run`, for the same script
 
-    interpreter.interpret(stmts);
-    if (hadRuntimeError) System.exit(70);
+    interpreter.interpret(new Optimizer(interpreter).optimize(stmts));
+    diagnostics().flush(); // ahead of the reports
+    reportHeap(interpreter);
+    reportAllocations(interpreter);
+    reportCoverage(interpreter);
+    return diagnostics().hadRuntimeError() ? 70 : 0;
+  }
+
+  // parses and resolves every script on the common fork-join pool, each reporting into
+  // diagnostics of its own, which are written out a script at a time in the order given. returns
+  // the exit status.
+  private static int check(List<String> paths) {
+    final var checked =
+        paths.parallelStream()
+            .map(
+                path -> {
+                  final var diagnostics = diagnostics(System.err, path);
+                  final var previous = Lox.diagnostics.get();
+                  Lox.diagnostics.set(diagnostics);
+                  try {
+                    check(Paths.get(path));
+                  } finally {
+                    Lox.diagnostics.set(previous);
+                  }
+                  return diagnostics;
+                })
+            .toList();
+    var status = 0;
+    for (var diagnostics : checked) {
+      diagnostics.flush();
+      if (diagnostics.hadError()) status = 65;
+    }
+    return status;
+  }
+
+  private static void check(Path path) {
+    final String source;
+    try {
+      source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+    } catch (IOException e) {
+      diagnostics()
+          .report(Diagnostics.Kind.READ, 0, null, "Can't read the script: " + e.getMessage());
+      return;
+    }
+    final var stmts = new Parser(new Scanner(source).scanTokens()).parse();
+    if (!diagnostics().hadError()) {
+      new Resolver(new Interpreter(/* isRepl: */ false)).resolve(stmts);
+    }
+  }
+
+  static Diagnostics diagnostics() {
+    return diagnostics.get();
+  }
+
+  static Diagnostics diagnostics(PrintStream err, String name) {
+    return new Diagnostics(err, maxErrors, name);
   }
 
   static void runtimeError(Interpreter.RuntimeError error) {
-    hadRuntimeError = true;
-    error(error.token.line(), error.getMessage());
+    diagnostics()
+        .report(Diagnostics.Kind.RUNTIME, error.token.line(), null, error.getMessage());
+  }
+
+  static void budgetExceeded(Budget.Exceeded exceeded) {
+    diagnostics().report(Diagnostics.Kind.LIMIT, 0, null, exceeded.getMessage());
   }
 
   static void error(int line, String message) {
-    report(line, "", message);
+    diagnostics().report(Diagnostics.Kind.SYNTAX, line, null, message);
   }
 
   static void error(Token token, String message) {
-    if (token.kind() == TokenKind.EOF) {
-      report(token.line(), " at end", message);
-    } else {
-      report(token.line(), " at `" + token.lexeme() + "`", message);
-    }
+    error(Diagnostics.Kind.SYNTAX, token, message);
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  static void error(Diagnostics.Kind kind, Token token, String message) {
+    diagnostics().report(kind, token.line(), token.lexeme(), message);
   }
 }
@@ -0,0 +1,134 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// lox list values, a growable array. a list holding only numbers keeps them unboxed in a
+// `double[]`, and moves to an `Object[]` for good the first time anything else is stored in it.
+// lists compare by identity like every other mutable value.
+final class LoxList {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private double[] numbers; // contents while every element is a number
+  private Object[] objects; // contents otherwise
+  private int size = 0;
+  Object owner = null; // the interpreter that created it, see `Interpreter.owns`
+
+  LoxList() {
+    this(new double[INITIAL_CAPACITY], null, 0);
+  }
+
+  private LoxList(double[] numbers, Object[] objects, int size) {
+    this.numbers = numbers;
+    this.objects = objects;
+    this.size = size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  // roughly what the list and its array take, `Heap.LIST` for a new one. the numbers it holds are
+  // never charged, anything else it holds was charged when it was made.
+  long footprint() {
+    final var elements = numbers != null ? 8L * numbers.length : 4L * objects.length;
+    return Heap.LIST - 8 * INITIAL_CAPACITY + elements;
+  }
+
+  Object get(Object index) {
+    final var i = index(index, size);
+    return numbers != null ? (Object) numbers[i] : objects[i];
+  }
+
+  void set(Object index, Object value) {
+    store(index(index, size), value);
+  }
+
+  void push(Object value) {
+    final var capacity = numbers != null ? numbers.length : objects.length;
+    if (size == capacity) {
+      final var grown = Math.max(INITIAL_CAPACITY, capacity * 2);
+      if (numbers != null) {
+        numbers = Arrays.copyOf(numbers, grown);
+      } else {
+        objects = Arrays.copyOf(objects, grown);
+      }
+    }
+    store(size++, value);
+  }
+
+  // elements `from` up to but not including `to`, in a list of the same kind.
+  LoxList slice(Object from, Object to) {
+    final var end = index(to, size + 1);
+    final var start = index(from, end + 1);
+    final var length = Math.max(end - start, INITIAL_CAPACITY);
+    return numbers != null
+        ? new LoxList(Arrays.copyOfRange(numbers, start, start + length), null, end - start)
+        : new LoxList(null, Arrays.copyOfRange(objects, start, start + length), end - start);
+  }
+
+  private void store(int i, Object value) {
+    if (numbers != null) {
+      if (value instanceof Double number) {
+        numbers[i] = number;
+        return;
+      }
+      objects = new Object[numbers.length];
+      for (int j = 0; j < size; j++) objects[j] = numbers[j];
+      numbers = null;
+    }
+    objects[i] = value;
+  }
+
+  // a whole number in [0, bound).
+  private static int index(Object index, int bound) {
+    if (!(index instanceof Double number) || number != Math.rint(number)) {
+      throw new RuntimeException("List index must be a whole number.");
+    }
+    if (number < 0 || number >= bound) {
+      throw new RuntimeException("List index " + OutputSink.format(number) + " out of range.");
+    }
+    return number.intValue();
+  }
+
+  @Override
+  public String toString() {
+    final var out = new StringBuilder();
+    append(out, printing());
+    return out.toString();
+  }
+
+  // the collections currently being printed, a collection nested in itself prints as `[...]` or
+  // `{...}` the second time around.
+  static Set<Object> printing() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  static void append(StringBuilder out, Object value, Set<Object> printing) {
+    switch (value) {
+      case LoxList list -> list.append(out, printing);
+      case LoxMap map -> map.append(out, printing);
+      case null, default -> out.append(Interpreter.stringify(value));
+    }
+  }
+
+  void append(StringBuilder out, Set<Object> printing) {
+    if (!printing.add(this)) {
+      out.append("[...]");
+      return;
+    }
+    out.append('[');
+    for (int i = 0; i < size; i++) {
+      if (i > 0) out.append(", ");
+      if (numbers != null) {
+        out.append(OutputSink.format(numbers[i]));
+      } else {
+        append(out, objects[i], printing);
+      }
+    }
+    out.append(']');
+    printing.remove(this);
+  }
+}
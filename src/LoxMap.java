@@ -0,0 +1,158 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+// lox map values. entries live in insertion order in parallel arrays, and an open addressing
+// table of entry indices (linear probing, kept at most half full) finds them by key. keys compare
+// like `==` does in lox: numbers by value, hashed straight from their bits, strings by contents
+// through their cached hash, everything else by identity. removing an entry leaves a hole that
+// lookups step over until the next rebuild packs the arrays again.
+final class LoxMap {
+  private static final int INITIAL_CAPACITY = 8;
+  private static final Object REMOVED = new Object();
+
+  private int[] slots; // entry index + 1, or 0 for an empty slot
+  private int shift; // 32 - log2(slots.length), for fibonacci hashing
+  private Object[] keys;
+  private Object[] values;
+  private int[] hashes;
+  private int count = 0; // entries used, removed ones included
+  private int size = 0;
+  Object owner = null; // the interpreter that created it, see `Interpreter.owns`
+
+  LoxMap() {
+    rebuild(INITIAL_CAPACITY);
+  }
+
+  int size() {
+    return size;
+  }
+
+  // roughly what the map and its arrays take, `Heap.MAP` for a new one: four int slots and 16
+  // bytes of entry arrays per entry.
+  long footprint() {
+    return Heap.MAP - (4 * 4 + 16) * INITIAL_CAPACITY + 4L * slots.length + 16L * keys.length;
+  }
+
+  boolean has(Object key) {
+    return find(key, hash(key)) >= 0;
+  }
+
+  // nil for missing keys, `has` tells them apart from keys mapped to nil.
+  Object get(Object key) {
+    final var entry = find(key, hash(key));
+    return entry < 0 ? null : values[entry];
+  }
+
+  void set(Object key, Object value) {
+    final var hash = hash(key);
+    final var entry = find(key, hash);
+    if (entry >= 0) {
+      values[entry] = value;
+      return;
+    }
+
+    if (count == keys.length) rebuild(Math.max(INITIAL_CAPACITY, size * 2));
+    keys[count] = key;
+    values[count] = value;
+    hashes[count] = hash;
+    place(count++);
+    size++;
+  }
+
+  Object remove(Object key) {
+    final var entry = find(key, hash(key));
+    if (entry < 0) return null;
+    final var value = values[entry];
+    keys[entry] = REMOVED;
+    values[entry] = null;
+    size--;
+    return value;
+  }
+
+  LoxList keys() {
+    final var list = new LoxList();
+    for (int i = 0; i < count; i++) {
+      if (keys[i] != REMOVED) list.push(keys[i]);
+    }
+    return list;
+  }
+
+  private static int hash(Object key) {
+    return switch (key) {
+      case null -> 0;
+      case Double number -> Long.hashCode(Double.doubleToLongBits(number));
+      default -> key.hashCode(); // `LoxString` caches its own, identity for mutable values
+    };
+  }
+
+  private int find(Object key, int hash) {
+    final var mask = slots.length - 1;
+    for (int slot = (hash * 0x9E3779B9) >>> shift; ; slot = (slot + 1) & mask) {
+      final var entry = slots[slot] - 1;
+      if (entry < 0) return -1;
+      if (hashes[entry] == hash && keys[entry] != REMOVED && same(keys[entry], key)) {
+        return entry;
+      }
+    }
+  }
+
+  private static boolean same(Object a, Object b) {
+    return a == b || a != null && a.equals(b);
+  }
+
+  private void place(int entry) {
+    final var mask = slots.length - 1;
+    var slot = (hashes[entry] * 0x9E3779B9) >>> shift;
+    while (slots[slot] != 0) slot = (slot + 1) & mask;
+    slots[slot] = entry + 1;
+  }
+
+  // packs the live entries into arrays of `capacity` and rehashes them.
+  private void rebuild(int capacity) {
+    final var oldKeys = keys;
+    final var oldValues = values;
+    final var oldHashes = hashes;
+    final var oldCount = count;
+
+    keys = new Object[capacity];
+    values = new Object[capacity];
+    hashes = new int[capacity];
+    slots = new int[Integer.highestOneBit(capacity) * 4];
+    shift = Integer.numberOfLeadingZeros(slots.length) + 1;
+    count = 0;
+    for (int i = 0; i < oldCount; i++) {
+      if (oldKeys[i] == REMOVED) continue;
+      keys[count] = oldKeys[i];
+      values[count] = oldValues[i];
+      hashes[count] = oldHashes[i];
+      place(count++);
+    }
+  }
+
+  @Override
+  public String toString() {
+    final var out = new StringBuilder();
+    append(out, LoxList.printing());
+    return out.toString();
+  }
+
+  void append(StringBuilder out, Set<Object> printing) {
+    if (!printing.add(this)) {
+      out.append("{...}");
+      return;
+    }
+    out.append('{');
+    var first = true;
+    for (int i = 0; i < count; i++) {
+      if (keys[i] == REMOVED) continue;
+      if (!first) out.append(", ");
+      first = false;
+      LoxList.append(out, keys[i], printing);
+      out.append(": ");
+      LoxList.append(out, values[i], printing);
+    }
+    out.append('}');
+    printing.remove(this);
+  }
+}
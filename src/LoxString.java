@@ -0,0 +1,167 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// lox string values. concatenation builds a rope that is flattened on demand (printing,
+// comparison, hashing) and flat contents are kept as latin-1 bytes whenever they fit.
+//
+// strings are values, shared freely by the workers of `parallelFor` and, through the literals of
+// cached scripts, by the daemon's runs. flattening happens under the string's lock and publishes
+// the flat contents through volatile writes before it drops the rope children, so a string seen
+// flat always has its contents. the hash is cached in a single int like `String` does, 0 until
+// it's computed, so a thread sees either nothing or the whole hash.
+final class LoxString {
+  // below this many chars concatenating eagerly is cheaper than keeping a rope node around
+  private static final int EAGER_CONCAT = 32;
+
+  private volatile byte[] latin1; // flat contents, if every char fits in a byte
+  private volatile char[] utf16; // flat contents, otherwise
+  private volatile LoxString left; // rope children, both null once flattened
+  private volatile LoxString right; // nulled after `left`
+  private final int length;
+  private final boolean wide;
+  private int hash = 0; // 0 until computed, recomputed every time if it really is 0
+
+  private LoxString(byte[] latin1, char[] utf16) {
+    this.latin1 = latin1;
+    this.utf16 = utf16;
+    this.length = latin1 != null ? latin1.length : utf16.length;
+    this.wide = utf16 != null;
+  }
+
+  private LoxString(LoxString left, LoxString right) {
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+    this.wide = left.wide || right.wide;
+  }
+
+  static LoxString of(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) > 0xFF) return new LoxString(null, value.toCharArray());
+    }
+    return new LoxString(value.getBytes(StandardCharsets.ISO_8859_1), null);
+  }
+
+  int length() {
+    return length;
+  }
+
+  // what making this string took: a rope node is just the node, its array is charged to
+  // `Heap.current` when it's flattened.
+  long allocated() {
+    return isFlat() ? Heap.STRING + array() : Heap.STRING;
+  }
+
+  private long array() {
+    return Heap.ARRAY + (wide ? 2L : 1L) * length;
+  }
+
+  LoxString concat(LoxString other) {
+    if (other.length == 0) return this;
+    if (length == 0) return other;
+    if (length + other.length > EAGER_CONCAT) return new LoxString(this, other);
+
+    if (!wide && !other.wide) {
+      final var bytes = Arrays.copyOf(flatLatin1(), length + other.length);
+      System.arraycopy(other.flatLatin1(), 0, bytes, length, other.length);
+      return new LoxString(bytes, null);
+    }
+    final var chars = new char[length + other.length];
+    copyChars(chars, 0);
+    other.copyChars(chars, length);
+    return new LoxString(null, chars);
+  }
+
+  private boolean isFlat() {
+    return left == null;
+  }
+
+  private byte[] flatLatin1() {
+    flatten();
+    return latin1;
+  }
+
+  private void flatten() {
+    if (isFlat()) return;
+    synchronized (this) {
+      if (!isFlat()) flattenRope();
+    }
+  }
+
+  // walks the rope right to left with an explicit stack, so a string built by appending in a
+  // loop (a left-leaning rope as deep as the loop is long) can't blow the java stack. a node
+  // another thread flattens meanwhile has one of its children null by the time it's looked at.
+  private void flattenRope() {
+    Heap.current.get().chargeUntilCollected(this, array());
+    final var bytes = wide ? null : new byte[length];
+    final var chars = wide ? new char[length] : null;
+    var end = length;
+    final var pending = new ArrayDeque<LoxString>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      final var node = pending.pop();
+      final var left = node.left;
+      final var right = node.right;
+      if (left != null && right != null) {
+        pending.push(left);
+        pending.push(right);
+        continue;
+      }
+      end -= node.length;
+      if (bytes != null) {
+        System.arraycopy(node.latin1, 0, bytes, end, node.length);
+      } else {
+        node.copyChars(chars, end);
+      }
+    }
+
+    latin1 = bytes;
+    utf16 = chars;
+    left = null;
+    right = null;
+  }
+
+  private void copyChars(char[] dest, int offset) {
+    flatten();
+    if (utf16 != null) {
+      System.arraycopy(utf16, 0, dest, offset, length);
+      return;
+    }
+    for (int i = 0; i < length; i++) dest[offset + i] = (char) (latin1[i] & 0xFF);
+  }
+
+  @Override
+  public int hashCode() {
+    var hash = this.hash;
+    if (hash == 0) {
+      flatten();
+      final var bytes = latin1;
+      hash = bytes != null ? Arrays.hashCode(bytes) : Arrays.hashCode(utf16);
+      this.hash = hash;
+    }
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) return true; // interned literals land here
+    if (!(other instanceof LoxString that)) return false;
+    if (length != that.length || wide != that.wide) return false;
+    final var hash = this.hash;
+    final var thatHash = that.hash;
+    if (hash != 0 && thatHash != 0 && hash != thatHash) return false;
+
+    flatten();
+    that.flatten();
+    return latin1 != null ? Arrays.equals(latin1, that.latin1) : Arrays.equals(utf16, that.utf16);
+  }
+
+  @Override
+  public String toString() {
+    flatten();
+    return latin1 != null ? new String(latin1, StandardCharsets.ISO_8859_1) : new String(utf16);
+  }
+}
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// what `memoize` returns: a pure function with a bounded LRU cache of results keyed by argument
+// lists. lox values compare by value for numbers, strings and booleans and by identity otherwise,
+// which is exactly what the keys need. the workers of `parallelFor` share the cache, and looking
+// a key up reorders it, so it's only touched while holding its lock.
+final class MemoizedFunction implements LoxCallable {
+  private static final int CAPACITY = 1 << 12;
+
+  private final AnonFunction function;
+  private final Map<List<Object>, Object> results =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder: */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+          return size() > CAPACITY;
+        }
+      };
+
+  MemoizedFunction(AnonFunction function) {
+    this.function = function;
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    synchronized (results) {
+      final var cached = results.get(arguments);
+      if (cached != null || results.containsKey(arguments)) return cached;
+    }
+
+    final var result = function.call(interpreter, arguments);
+    synchronized (results) {
+      results.put(Arrays.asList(arguments.toArray()), result); // callers may reuse their list
+    }
+    return result;
+  }
+
+  @Override
+  public int arity() {
+    return function.arity();
+  }
+
+  @Override
+  public String toString() {
+    return "<memoized " + function + ">";
+  }
+}
@@ -0,0 +1,36 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// a builtin implemented in java. `body` is only called with as many arguments as `arity` says,
+// and reports misuse by throwing, which `visitCallExpr` turns into a runtime error at the call.
+final class NativeFunction implements LoxCallable {
+  interface Body {
+    Object call(Interpreter interpreter, List<Object> arguments) throws RuntimeException;
+  }
+
+  private final String name;
+  private final int arity;
+  private final Body body;
+
+  NativeFunction(String name, int arity, Body body) {
+    this.name = name;
+    this.arity = arity;
+    this.body = body;
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    return body.call(interpreter, arguments);
+  }
+
+  @Override
+  public int arity() {
+    return arity;
+  }
+
+  @Override
+  public String toString() {
+    return "<native " + name + ">";
+  }
+}
@@ -0,0 +1,431 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// runs after resolution and fuses the idioms tight loops are made of into single nodes:
+//   `i = i + 1`, `i = i - k`      -> `Expr.Increment`
+//   `i < n`, `i >= 10`, `i < 2*n` -> `Expr.Compare`
+//   a desugared `for` over both   -> `Stmt.CountedLoop`
+// only locals are fused, with the scope distances the resolver found copied into the node. fused
+// nodes keep the originals around to be printed and flattened, and to fall back on when the
+// operands turn out not to be numbers. untouched subtrees are shared with the input.
+//
+// it also hoists loop invariant subexpressions, see `Loop`, and puts in the probes of the tool
+// attached to the interpreter, see `Instrument`.
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // where a run of a loop keeps the value of one of its hoisted expressions.
+  static final class Cell {
+    static final Object EMPTY = new Object();
+    static final Object UNCACHED = new Object(); // calls something that turned out not to be pure
+
+    Object value = EMPTY;
+  }
+
+  // the loop expressions are being hoisted out of. an expression is invariant if all it reads
+  // are variables declared outside the loop that nothing inside assigns, by name, and it calls
+  // nothing but globals, which only counts if the loop writes no globals at all. whether those
+  // are bound to pure functions is checked the first time the expression runs.
+  private final class Loop {
+    final Resolver.LoopEffects effects;
+    final List<Cell> cells = new ArrayList<>();
+    int scopes = 0; // opened inside the loop around the expression being looked at
+
+    Loop(Resolver.LoopEffects effects) {
+      this.effects = effects;
+    }
+
+    boolean isInvariant(Expr expr, List<Expr.Variable> callees) {
+      return switch (expr) {
+        case Expr.Literal _literal -> true;
+        case Expr.Grouping grouping -> isInvariant(grouping.expression(), callees);
+        case Expr.Unary unary -> isInvariant(unary.right(), callees);
+        case Expr.Binary binary ->
+            isInvariant(binary.left(), callees) && isInvariant(binary.right(), callees);
+        case Expr.Logical logical ->
+            isInvariant(logical.left(), callees) && isInvariant(logical.right(), callees);
+        case Expr.If conditional ->
+            isInvariant(conditional.condition(), callees)
+                && isInvariant(conditional.first(), callees)
+                && isInvariant(conditional.second(), callees);
+        case Expr.Variable variable -> isInvariant(variable);
+        case Expr.Call call -> {
+          if (effects.writesGlobals()
+              || !(call.callee() instanceof Expr.Variable callee)
+              || callee.depth >= 0
+              || !isInvariant(callee)) {
+            yield false;
+          }
+          for (var argument : call.arguments()) {
+            if (!isInvariant(argument, callees)) yield false;
+          }
+          callees.add(callee);
+          yield true;
+        }
+        default -> false; // functions are new closures every time, assignments write
+      };
+    }
+
+    private boolean isInvariant(Expr.Variable variable) {
+      final var name = variable.name().lexeme();
+      if (effects.writes().contains(name)) return false;
+      if (effects.calls() && interpreter.isCapturedWrite(name)) return false;
+      final var depth = variable.depth;
+      return depth < 0 || depth >= scopes;
+    }
+  }
+
+  private final Interpreter interpreter;
+  private Loop loop = null; // innermost loop around what's being rewritten, not counting functions
+
+  Optimizer(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  // what comes out is annotated with the types of its operands, see `Types`.
+  List<Stmt> optimize(List<Stmt> statements) {
+    final var optimized = rewrite(statements);
+    Types.infer(optimized);
+    return optimized;
+  }
+
+  Expr.Function optimize(Expr.Function function) {
+    final var optimized = (Expr.Function) rewrite(function);
+    Types.infer(optimized);
+    return optimized;
+  }
+
+  private Expr rewrite(Expr expr) {
+    if (loop == null || !isWorthHoisting(expr)) return expr.accept(this);
+
+    final var callees = new ArrayList<Expr.Variable>();
+    if (!loop.isInvariant(expr, callees)) return expr.accept(this);
+    final var enclosing = loop;
+    loop = null;
+    try {
+      final var cell = new Cell();
+      enclosing.cells.add(cell);
+      return new Expr.Invariant(expr.accept(this), cell, callees);
+    } finally {
+      loop = enclosing;
+    }
+  }
+
+  // reading a variable or a constant is already as cheap as reading a cell.
+  private static boolean isWorthHoisting(Expr expr) {
+    return switch (expr) {
+      case Expr.Grouping grouping -> isWorthHoisting(grouping.expression());
+      case Expr.Unary unary -> isWorthHoisting(unary.right());
+      case Expr.Literal _literal -> false;
+      case Expr.Variable _variable -> false;
+      default -> true;
+    };
+  }
+
+  private Stmt rewriteStmt(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Stmt.Block rewrite(Stmt.Block block) {
+    final List<Stmt> statements;
+    if (loop != null) loop.scopes += 1;
+    try {
+      statements = rewrite(block.statements());
+    } finally {
+      if (loop != null) loop.scopes -= 1;
+    }
+    if (statements == block.statements()) return block;
+    return new Stmt.Block(statements, block.enclosedInLoop());
+  }
+
+  private List<Stmt> rewrite(List<Stmt> statements) {
+    List<Stmt> result = null;
+    for (int i = 0; i < statements.size(); i++) {
+      final var statement = statements.get(i);
+      final var rewritten = probed(rewriteStmt(statement));
+      if (rewritten != statement && result == null) {
+        result = new ArrayList<>(statements.subList(0, i));
+      }
+      if (result != null) result.add(rewritten);
+    }
+    return result == null ? statements : result;
+  }
+
+  private Stmt probed(Stmt stmt) {
+    final var instrument = interpreter.instrument();
+    final var probe = instrument == null ? null : instrument.statement(stmt);
+    return probe == null ? stmt : new Stmt.Probed(stmt, probe);
+  }
+
+  private Expr probedCondition(Expr condition) {
+    final var instrument = interpreter.instrument();
+    final var probe = instrument == null ? null : instrument.condition(condition);
+    return probe == null ? condition : new Expr.Probed(condition, probe);
+  }
+
+  private Expr rewriteOptional(Expr expr) {
+    return expr == null ? null : rewrite(expr);
+  }
+
+  private static Double constant(Expr expr) {
+    return expr instanceof Expr.Literal literal && literal.value() instanceof Double value
+        ? value
+        : null;
+  }
+
+  private boolean isLocal(Expr expr, String name, int depth) {
+    return expr instanceof Expr.Variable variable
+        && variable.name().lexeme().equals(name)
+        && variable.depth == depth;
+  }
+
+  private int localDepth(Expr expr) {
+    return expr instanceof Expr.Variable variable ? variable.depth : -1;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    final var value = rewrite(expr.value());
+    final var assign =
+        value == expr.value()
+            ? expr
+            : interpreter.replaced(expr, new Expr.Assign(expr.name(), value));
+
+    final var depth = assign.depth;
+    if (depth < 0 || !(value instanceof Expr.Binary binary)) return assign;
+
+    final var name = assign.name().lexeme();
+    final var left = binary.left();
+    final var right = binary.right();
+    return switch (binary.operator().kind()) {
+      case PLUS -> {
+        if (isLocal(left, name, depth) && constant(right) != null) {
+          yield new Expr.Increment(assign, depth, constant(right));
+        }
+        if (isLocal(right, name, depth) && constant(left) != null) {
+          yield new Expr.Increment(assign, depth, constant(left));
+        }
+        yield assign;
+      }
+      case MINUS -> {
+        if (isLocal(left, name, depth) && constant(right) != null) {
+          yield new Expr.Increment(assign, depth, -constant(right));
+        }
+        yield assign;
+      }
+      default -> assign;
+    };
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    final var left = rewrite(expr.left());
+    final var right = rewrite(expr.right());
+    final var binary =
+        left == expr.left() && right == expr.right()
+            ? expr
+            : new Expr.Binary(left, expr.operator(), right);
+
+    return switch (binary.operator().kind()) {
+      case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> {
+        final var leftDepth = localDepth(left);
+        final var rightDepth = localDepth(right);
+        final var bound = constant(right) != null || right instanceof Expr.Invariant;
+        if (leftDepth < 0 || rightDepth < 0 && !bound) yield binary;
+        yield new Expr.Compare(binary, leftDepth, rightDepth);
+      }
+      default -> binary;
+    };
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    final var callee = rewrite(expr.callee());
+    final var arguments = new ArrayList<Expr>(expr.arguments().size());
+    var changed = callee != expr.callee();
+    for (var argument : expr.arguments()) {
+      final var rewritten = rewrite(argument);
+      changed |= rewritten != argument;
+      arguments.add(rewritten);
+    }
+    return changed ? new Expr.Call(callee, expr.paren(), arguments) : expr;
+  }
+
+  @Override
+  public Expr visitCompareExpr(Expr.Compare expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    if (expr.body() == null) return expr; // optimized once it's parsed
+    final var enclosing = loop;
+    loop = null; // a body runs when called, hoisting out of it would need a cell per closure
+    final Stmt.Block body;
+    try {
+      body = rewrite(expr.body());
+    } finally {
+      loop = enclosing;
+    }
+    if (body == expr.body()) return expr;
+    return interpreter.replaced(expr, new Expr.Function(expr.params(), body, null));
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    final var expression = rewrite(expr.expression());
+    return expression == expr.expression() ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitIfExpr(Expr.If expr) {
+    final var condition = probedCondition(rewrite(expr.condition()));
+    final var first = rewrite(expr.first());
+    final var second = rewrite(expr.second());
+    if (condition == expr.condition() && first == expr.first() && second == expr.second()) {
+      return expr;
+    }
+    return new Expr.If(condition, first, second);
+  }
+
+  @Override
+  public Expr visitIncrementExpr(Expr.Increment expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    final var left = probedCondition(rewrite(expr.left()));
+    final var right = rewrite(expr.right());
+    if (left == expr.left() && right == expr.right()) return expr;
+    return new Expr.Logical(left, expr.operator(), right);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    final var right = rewrite(expr.right());
+    return right == expr.right() ? expr : new Expr.Unary(expr.operator(), right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    return rewrite(stmt);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    final var expression = rewrite(stmt.expression());
+    return expression == stmt.expression() ? stmt : new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    final var definition = rewrite(stmt.definition());
+    if (definition == stmt.definition()) return stmt;
+    return new Stmt.Function(stmt.name(), (Expr.Function) definition);
+  }
+
+  @Override
+  public Expr visitProbedExpr(Expr.Probed expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitProbedStmt(Stmt.Probed stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitHoistedStmt(Stmt.Hoisted stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    final var condition = probedCondition(rewrite(stmt.condition()));
+    final var thenBranch = rewrite(stmt.thenBranch());
+    final var elseBranch = stmt.elseBranch() == null ? null : rewrite(stmt.elseBranch());
+    if (condition == stmt.condition()
+        && thenBranch == stmt.thenBranch()
+        && elseBranch == stmt.elseBranch()) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    final var expression = rewrite(stmt.expression());
+    return expression == stmt.expression() ? stmt : new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    final var value = rewriteOptional(stmt.value());
+    return value == stmt.value() ? stmt : new Stmt.Return(stmt.keyword(), value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    final var initializer = rewriteOptional(stmt.initializer());
+    return initializer == stmt.initializer() ? stmt : new Stmt.Var(stmt.name(), initializer);
+  }
+
+  // a `for` with a fused condition and increment, as `Parser.forLoop` desugars it:
+  // `While(condition, Block([body, Expression(increment)], true))`
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    final var effects = interpreter.loopEffects(stmt);
+    final var enclosing = loop;
+    final var hoisting = effects == null ? null : new Loop(effects);
+    loop = hoisting;
+    final Expr condition;
+    final Stmt.Block body;
+    try {
+      condition = probedCondition(rewrite(stmt.condition()));
+      body = rewrite(stmt.body());
+    } finally {
+      loop = enclosing;
+    }
+
+    final var rebuilt =
+        condition == stmt.condition() && body == stmt.body()
+            ? stmt
+            : new Stmt.While(condition, body);
+    final var fused =
+        condition instanceof Expr.Compare compare
+                && body.statements().size() == 2
+                && body.statements().getFirst() instanceof Stmt.Block inner
+                && body.statements().getLast() instanceof Stmt.Expression step
+                && step.expression() instanceof Expr.Increment
+            ? new Stmt.CountedLoop(rebuilt, compare, inner, step)
+            : rebuilt;
+    if (hoisting == null || hoisting.cells.isEmpty()) return fused;
+    return new Stmt.Hoisted(fused, hoisting.cells);
+  }
+}
@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+// buffered sink behind `print`. output is only handed to the channel when the buffer fills up or
+// on an explicit flush (end of `interpret`, before `sleep`, ...), instead of once per statement.
+final class OutputSink {
+  static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private static final String[] SMALL_INTEGERS = new String[1024];
+
+  static {
+    for (int i = 0; i < SMALL_INTEGERS.length; i++) SMALL_INTEGERS[i] = Integer.toString(i);
+  }
+
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer;
+  private final Charset charset;
+  private final byte[] digits = new byte[20];
+
+  OutputSink(WritableByteChannel channel, Charset charset, int capacity) {
+    this.channel = channel;
+    this.charset = charset;
+    this.buffer = ByteBuffer.allocate(Math.max(capacity, digits.length + 1));
+  }
+
+  static OutputSink stdout() {
+    return new OutputSink(
+        new FileOutputStream(FileDescriptor.out).getChannel(),
+        System.out.charset(),
+        Integer.getInteger("jlox.output.buffer", DEFAULT_CAPACITY));
+  }
+
+  // same text `Double.toString` would give, minus the trailing ".0" on integers. doubles are only
+  // printed without an exponent below 10^7, which is exactly the range the fast paths cover.
+  static String format(double number) {
+    if (!isPlainInteger(number)) return Double.toString(number);
+    final var n = (int) number;
+    if (n >= 0 && n < SMALL_INTEGERS.length && !isNegativeZero(number)) return SMALL_INTEGERS[n];
+    return isNegativeZero(number) ? "-0" : Integer.toString(n);
+  }
+
+  private static boolean isPlainInteger(double number) {
+    return number > -1e7 && number < 1e7 && number == Math.rint(number);
+  }
+
+  private static boolean isNegativeZero(double number) {
+    return number == 0 && Double.doubleToRawLongBits(number) != 0;
+  }
+
+  void print(double number) {
+    if (!isPlainInteger(number)) {
+      print(Double.toString(number));
+      return;
+    }
+
+    var n = (int) number;
+    final var negative = n < 0 || isNegativeZero(number);
+    var i = digits.length;
+    do {
+      digits[--i] = (byte) ('0' + Math.abs(n % 10));
+      n /= 10;
+    } while (n != 0);
+    if (negative) digits[--i] = '-';
+    reserve(digits.length - i);
+    buffer.put(digits, i, digits.length - i);
+  }
+
+  void print(String text) {
+    final var length = text.length();
+    if (length <= buffer.capacity() && isAscii(text)) {
+      reserve(length);
+      for (int i = 0; i < length; i++) buffer.put((byte) text.charAt(i));
+      return;
+    }
+
+    final var bytes = text.getBytes(charset);
+    if (bytes.length > buffer.capacity()) {
+      flush();
+      write(ByteBuffer.wrap(bytes));
+      return;
+    }
+    reserve(bytes.length);
+    buffer.put(bytes);
+  }
+
+  void newline() {
+    reserve(1);
+    buffer.put((byte) '\n');
+  }
+
+  void flush() {
+    if (buffer.position() == 0) return;
+    buffer.flip();
+    write(buffer);
+    buffer.clear();
+  }
+
+  private static boolean isAscii(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) >= 0x80) return false;
+    }
+    return true;
+  }
+
+  private void reserve(int bytes) {
+    if (buffer.remaining() < bytes) flush();
+  }
+
+  private void write(ByteBuffer bytes) {
+    try {
+      while (bytes.hasRemaining()) channel.write(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
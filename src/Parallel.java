@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+// `parallelFor` and `parallelMap`: iterations 0 up to `count` split into chunks across the common
+// fork-join pool, a few per thread so the ones that finish early can steal from the rest. every
+// chunk runs in a worker of the interpreter that started it, see `Interpreter.worker`, which
+// reads the globals and whatever the closures it calls captured but can only write what it
+// created itself. writing shared state is a runtime error rather than a race.
+//
+// the first chunk to fail stops the others from starting new iterations, and its error is
+// rethrown on the thread that started them once they're all done.
+@SuppressWarnings("serial") // a fork-join task is serializable by inheritance, this one never is
+final class Parallel extends RecursiveAction {
+  interface Iteration {
+    void run(Interpreter worker, int index);
+  }
+
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final Interpreter interpreter;
+  private final Iteration iteration;
+  private final Diagnostics diagnostics; // what workers report goes where the script's does
+  private final AtomicReference<RuntimeException> failure;
+  private final int chunk;
+  private final int from;
+  private final int to;
+
+  private Parallel(
+      Interpreter interpreter,
+      Iteration iteration,
+      Diagnostics diagnostics,
+      AtomicReference<RuntimeException> failure,
+      int chunk,
+      int from,
+      int to) {
+    this.interpreter = interpreter;
+    this.iteration = iteration;
+    this.diagnostics = diagnostics;
+    this.failure = failure;
+    this.chunk = chunk;
+    this.from = from;
+    this.to = to;
+  }
+
+  static void run(Interpreter interpreter, int count, Iteration iteration) {
+    if (count == 0) return;
+    final var chunks = ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD;
+    final var chunk = Math.max(1, count / chunks);
+    final var failure = new AtomicReference<RuntimeException>();
+    new Parallel(interpreter, iteration, Lox.diagnostics(), failure, chunk, 0, count).invoke();
+    if (failure.get() != null) throw failure.get();
+  }
+
+  private Parallel split(int from, int to) {
+    return new Parallel(interpreter, iteration, diagnostics, failure, chunk, from, to);
+  }
+
+  @Override
+  protected void compute() {
+    if (failure.get() != null) return;
+    if (to - from > chunk) {
+      final var middle = (from + to) >>> 1;
+      invokeAll(split(from, middle), split(middle, to));
+      return;
+    }
+    final var worker = interpreter.worker();
+    final var previous = Lox.diagnostics.get(); // the pool's threads run other scripts' too
+    final var previousHeap = Heap.current.get();
+    Lox.diagnostics.set(diagnostics);
+    Heap.current.set(worker.heap());
+    try {
+      for (int i = from; i < to && failure.get() == null; i++) iteration.run(worker, i);
+    } catch (RuntimeException e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      Lox.diagnostics.set(previous);
+      Heap.current.set(previousHeap);
+      interpreter.join(worker);
+    }
+  }
+}
@@ -4,8 +4,11 @@ import static com.craftinginterpreters.lox.TokenKind.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
 
 class Parser {
   final class ParseError extends RuntimeException {
@@ -16,11 +19,32 @@ class Parser {
     }
   }
 
-  private final List<Token> tokens;
-  private int current = 0;
+  private final Supplier<Token> tokens;
+  private final Resolver resolver; // non-null when resolving while parsing
+  private final boolean lazy; // skip function bodies, see `LazyBody`
+  private boolean failed = false;
+  private Token previous = null;
+  private Token next;
 
   Parser(List<Token> tokens) {
+    this(tokens, false);
+  }
+
+  Parser(List<Token> tokens, boolean lazy) {
+    this(tokens.iterator()::next, null, lazy);
+  }
+
+  // single pass front end: tokens are scanned on demand and every scope, declaration and name is
+  // resolved as soon as it's parsed, so what comes out is ready to interpret.
+  Parser(Scanner scanner, Resolver resolver) {
+    this(scanner::nextToken, resolver, false);
+  }
+
+  private Parser(Supplier<Token> tokens, Resolver resolver, boolean lazy) {
     this.tokens = tokens;
+    this.resolver = resolver;
+    this.lazy = lazy;
+    this.next = tokens.get();
   }
 
   List<Stmt> parse() {
@@ -31,6 +55,16 @@ class Parser {
     return statements;
   }
 
+  // parses the tokens of a body `skipBody` set aside, null after reporting syntax errors.
+  Stmt.Block functionBody() {
+    try {
+      final var body = blockBody("Expect '{' before fun body.", false);
+      return failed ? null : body;
+    } catch (ParseError _error) {
+      return null;
+    }
+  }
+
   private Stmt declaration(boolean enclosedInLoop) {
     try {
       if (tryConsume(FUN)) return function();
@@ -50,14 +84,15 @@ class Parser {
       return new Stmt.Expression(e);
     }
     final var name = current();
+    if (resolver != null) resolver.define(name);
     return new Stmt.Function(name, functionExpr());
   }
 
   private Stmt varDeclaration() {
     mustConsume(IDENTIFIER, "Expected variable name.");
     final var name = current();
-    final var initializer =
-        tryConsume(EQUAL) ? Optional.of(ifExpression()) : Optional.<Expr>empty();
+    if (resolver != null) resolver.define(name);
+    final var initializer = tryConsume(EQUAL) ? ifExpression() : null;
     mustConsume(SEMICOLON, "Expected ';' after variable declaration.");
     return new Stmt.Var(name, initializer);
   }
@@ -79,43 +114,52 @@ class Parser {
 
   private Stmt returnStatement() {
     final var keyword = current();
-    final var value = nextIs(SEMICOLON) ? Optional.<Expr>empty() : Optional.of(expression());
+    if (resolver != null) resolver.resolveReturn(keyword);
+    final var value = nextIs(SEMICOLON) ? null : expression();
     mustConsume(SEMICOLON, "Expect ';' after return value.");
     return new Stmt.Return(keyword, value);
   }
 
   private Stmt forStatement() {
     final var parens = tryConsume(LEFT_PAREN);
+    if (tryConsume(SEMICOLON)) return forLoop(parens);
 
-    final var initializer =
-        tryConsume(SEMICOLON)
-            ? Optional.<Stmt>empty()
-            : tryConsume(VAR) ? Optional.of(varDeclaration()) : Optional.of(expressionStatement());
-
-    final var condition = nextIs(SEMICOLON) ? new Expr.Literal(true) : expression();
-    mustConsume(SEMICOLON, "Expected ';' after loop condition.");
+    // the initializer and the loop after it end up in a block of their own
+    return inScope(
+        () -> {
+          final var initializer = tryConsume(VAR) ? varDeclaration() : expressionStatement();
+          return new Stmt.Block(Arrays.asList(initializer, forLoop(parens)), true);
+        });
+  }
 
-    final var increment =
-        parens && nextIs(RIGHT_PAREN) || nextIs(LEFT_BRACE)
-            ? Optional.<Expr>empty()
-            : Optional.of(expression());
+  private Stmt.While forLoop(boolean parens) {
+    return inLoop(
+        () -> {
+          final var condition = nextIs(SEMICOLON) ? new Expr.Literal(true) : expression();
+          mustConsume(SEMICOLON, "Expected ';' after loop condition.");
 
-    if (parens) mustConsume(RIGHT_PAREN, "Unterminated '(' in for clauses.");
+          if (parens && nextIs(RIGHT_PAREN) || nextIs(LEFT_BRACE)) {
+            if (parens) mustConsume(RIGHT_PAREN, "Unterminated '(' in for clauses.");
+            return new Stmt.While(condition, block("Expected '{' after for clauses.", true));
+          }
 
-    final var body = block("Expected '{' after for clauses.", true);
-    final var iterations =
-        new Stmt.While(
-            condition,
-            increment
-                .map(e -> new Stmt.Block(Arrays.asList(body, new Stmt.Expression(e)), true))
-                .orElse(body));
-    return initializer
-        .<Stmt>map(init -> new Stmt.Block(Arrays.asList(init, iterations), true))
-        .orElse(iterations);
+          // and the increment runs in a block wrapped around the body
+          return inScope(
+              () -> {
+                final var increment = expression();
+                if (parens) mustConsume(RIGHT_PAREN, "Unterminated '(' in for clauses.");
+                final var body = block("Expected '{' after for clauses.", true);
+                return new Stmt.While(
+                    condition,
+                    new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)), true));
+              });
+        });
   }
 
-  private Stmt whileStatement() {
-    return new Stmt.While(expression(), block("Expected '{' after while condition.", true));
+  private Stmt.While whileStatement() {
+    return inLoop(
+        () ->
+            new Stmt.While(expression(), block("Expected '{' after while condition.", true)));
   }
 
   private Stmt ifStatement(boolean enclosedInLoop) {
@@ -123,9 +167,9 @@ class Parser {
 
     final var thenBranch = block("Expected '{' after if condition.", enclosedInLoop);
 
-    var elseBranch = Optional.<Stmt.Block>empty();
+    Stmt.Block elseBranch = null;
     if (tryConsume(ELSE)) {
-      elseBranch = Optional.of(block("Expected '{' after `else`.", enclosedInLoop));
+      elseBranch = block("Expected '{' after `else`.", enclosedInLoop);
     }
 
     return new Stmt.If(condition, thenBranch, elseBranch);
@@ -134,6 +178,7 @@ class Parser {
   private Stmt printStatement() {
     final var value = ifExpression();
     mustConsume(SEMICOLON, "Expected ';' after value.");
+    if (resolver != null) resolver.resolvePrint();
     return new Stmt.Print(value);
   }
 
@@ -144,6 +189,10 @@ class Parser {
   }
 
   private Stmt.Block block(String errMsg, boolean enclosedInLoop) {
+    return inScope(() -> blockBody(errMsg, enclosedInLoop));
+  }
+
+  private Stmt.Block blockBody(String errMsg, boolean enclosedInLoop) {
     mustConsume(LEFT_BRACE, errMsg);
     final var statements = new ArrayList<Stmt>();
     while (!nextIs(RIGHT_BRACE) && !atEof()) {
@@ -197,90 +246,139 @@ class Parser {
       } while (tryConsume(COMMA));
     }
     mustConsume(RIGHT_PAREN, "Expect ')' after fun parameters.");
-    return new Expr.Function(parameters, block("Expect '{' before fun body.", false));
-  }
+    if (lazy) return new Expr.Function(parameters, null, skipBody());
+    if (resolver == null) {
+      return new Expr.Function(parameters, blockBody("Expect '{' before fun body.", false), null);
+    }
 
-  private Expr assignment() {
-    final var expr = or();
-    if (tryConsume(EQUAL)) {
-      final var equals = current();
-      final var value = assignment();
-      if (expr instanceof Expr.Variable) {
-        final var name = ((Expr.Variable) expr).name();
-        return new Expr.Assign(name, value);
-      }
-      error(equals, "Invalid assignment target.");
+    // the body shares the parameters' scope, see `Resolver.beginFunction`
+    resolver.beginFunction();
+    Expr.Function function = null;
+    try {
+      parameters.forEach(resolver::define);
+      final var body = blockBody("Expect '{' before fun body.", false);
+      function = new Expr.Function(parameters, body, null);
+      return function;
+    } finally {
+      resolver.endFunction(function); // still null if the body didn't parse
     }
-    return expr;
   }
 
-  private Expr or() {
-    var expr = and();
-    while (tryConsume(OR)) {
-      final var operator = current();
-      final var right = and();
-      expr = new Expr.Logical(expr, operator, right);
+  // sets a function's body aside by matching braces, without looking at what's between them.
+  private LazyBody skipBody() {
+    mustConsume(LEFT_BRACE, "Expect '{' before fun body.");
+    final var body = new ArrayList<Token>();
+    final var assigned = new HashSet<String>();
+    body.add(current());
+    for (var depth = 1; depth > 0; ) {
+      if (atEof()) throw error(peek(), "Expected '}' after block.");
+      advance();
+      switch (current().kind()) {
+        case LEFT_BRACE -> depth++;
+        case RIGHT_BRACE -> depth--;
+        case EQUAL -> {
+          final var target = body.getLast();
+          if (target.kind() == IDENTIFIER) assigned.add(target.lexeme());
+        }
+        default -> {}
+      }
+      body.add(current());
     }
-    return expr;
+    body.add(new Token(EOF, "", Optional.empty(), current().line()));
+    return new LazyBody(body, Set.copyOf(assigned));
   }
 
-  private Expr and() {
-    var expr = equality();
-    while (tryConsume(AND)) {
-      final var operator = current();
-      final var right = equality();
-      expr = new Expr.Logical(expr, operator, right);
+  // runs `parse` in a scope of its own when resolving while parsing.
+  private <T> T inScope(Supplier<T> parse) {
+    if (resolver == null) return parse.get();
+    resolver.beginScope();
+    try {
+      return parse.get();
+    } finally {
+      resolver.endScope();
     }
-    return expr;
   }
 
-  private Expr equality() {
-    var expr = comparison();
-    while (tryConsume(BANG_EQUAL, EQUAL_EQUAL)) {
-      final var operator = current();
-      final var right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
+  // records what the loop `parse` returns does when resolving while parsing.
+  private Stmt.While inLoop(Supplier<Stmt.While> parse) {
+    if (resolver == null) return parse.get();
+    resolver.beginLoop();
+    Stmt.While loop = null;
+    try {
+      loop = parse.get();
+      return loop;
+    } finally {
+      resolver.endLoop(loop); // still null if the loop didn't parse
     }
-    return expr;
   }
 
-  private Expr comparison() {
-    var expr = term();
-    while (tryConsume(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      final var operator = current();
-      final var right = term();
-      expr = new Expr.Binary(expr, operator, right);
+  // binding power of every binary operator, indexed by `TokenKind` ordinal. zero means the token
+  // doesn't continue an expression, and a higher number binds tighter.
+  private static final int[] PRECEDENCE = new int[TokenKind.values().length];
+
+  static {
+    final TokenKind[][] levels = {
+      {OR}, {AND}, {BANG_EQUAL, EQUAL_EQUAL}, {GREATER, GREATER_EQUAL, LESS, LESS_EQUAL},
+      {MINUS, PLUS}, {SLASH, STAR},
+    };
+    for (int i = 0; i < levels.length; i++) {
+      for (var kind : levels[i]) PRECEDENCE[kind.ordinal()] = i + 1;
     }
-    return expr;
   }
 
-  private Expr term() {
-    var expr = factor();
-    while (tryConsume(MINUS, PLUS)) {
-      final var operator = current();
-      final var right = factor();
-      expr = new Expr.Binary(expr, operator, right);
+  private Expr assignment() {
+    final var expr = binary(1);
+    if (!nextIs(EQUAL)) return expr;
+
+    // `a = b = c` nests to the right, so collect the whole chain and build it inside out
+    final var operands = new ArrayList<Expr>();
+    final var equalSigns = new ArrayList<Token>();
+    operands.add(expr);
+    while (tryConsume(EQUAL)) {
+      equalSigns.add(current());
+      operands.add(binary(1));
     }
-    return expr;
+    var value = operands.removeLast();
+    for (int i = operands.size() - 1; i >= 0; i--) {
+      if (operands.get(i) instanceof Expr.Variable target) {
+        final var assign = new Expr.Assign(target.name(), value);
+        if (resolver != null) resolver.resolveAssignment(assign);
+        value = assign;
+      } else {
+        error(equalSigns.get(i), "Invalid assignment target.");
+        value = operands.get(i);
+      }
+    }
+    return value;
   }
 
-  private Expr factor() {
+  // precedence climbing: operators that bind at least as tight as `minPrecedence` are folded into
+  // `expr` in a loop, and the right operand only recurses for operators that bind tighter than the
+  // one being folded, so left-associative chains of any length stay at a constant stack depth.
+  private Expr binary(int minPrecedence) {
     var expr = unary();
-    while (tryConsume(SLASH, STAR)) {
+    while (true) {
+      final var precedence = PRECEDENCE[peek().kind().ordinal()];
+      if (precedence < minPrecedence) return expr;
+      advance();
       final var operator = current();
-      final var right = unary();
-      expr = new Expr.Binary(expr, operator, right);
+      final var right = binary(precedence + 1);
+      expr =
+          switch (operator.kind()) {
+            case OR, AND -> new Expr.Logical(expr, operator, right);
+            default -> new Expr.Binary(expr, operator, right);
+          };
     }
-    return expr;
   }
 
   private Expr unary() {
-    if (tryConsume(BANG, MINUS)) {
-      final var operator = current();
-      final var right = unary();
-      return new Expr.Unary(operator, right);
-    }
-    return call();
+    if (!nextIs(BANG) && !nextIs(MINUS)) return call();
+
+    final var operators = new ArrayList<Token>();
+    while (tryConsume(BANG) || tryConsume(MINUS)) operators.add(current());
+    var expr = call();
+    for (var operator : operators.reversed()) expr = new Expr.Unary(operator, expr);
+    return expr;
   }
 
   private Expr call() {
@@ -297,7 +395,9 @@ class Parser {
       }
       mustConsume(RIGHT_PAREN, "Expected ')' after arguments.");
       final var paren = current();
-      expr = new Expr.Call(expr, paren, arguments);
+      final var call = new Expr.Call(expr, paren, arguments);
+      if (resolver != null) resolver.resolveCall(call);
+      expr = call;
     }
     return expr;
   }
@@ -314,7 +414,12 @@ class Parser {
         mustConsume(RIGHT_PAREN, "Expected ')' after expression.");
         yield new Expr.Grouping(e);
       }
-      case IDENTIFIER -> new Expr.Variable(current());
+      case IDENTIFIER -> {
+        final var variable = new Expr.Variable(current());
+        // an assignment target isn't a read, `assignment` resolves it as what it is
+        if (resolver != null && !nextIs(EQUAL)) resolver.resolveVariable(variable);
+        yield variable;
+      }
       default -> throw error(current(), "Expected expression.");
     };
   }
@@ -333,14 +438,10 @@ class Parser {
     }
   }
 
-  private boolean tryConsume(TokenKind... kinds) {
-    for (var k : kinds) {
-      if (nextIs(k)) {
-        advance();
-        return true;
-      }
-    }
-    return false;
+  private boolean tryConsume(TokenKind kind) {
+    if (!nextIs(kind)) return false;
+    advance();
+    return true;
   }
 
   private boolean mustConsume(TokenKind kind, String message) {
@@ -352,6 +453,7 @@ class Parser {
   }
 
   private ParseError error(Token t, String message) {
+    failed = true;
     Lox.error(t, message);
     return new ParseError(new Token(ERROR, t.lexeme(), Optional.of(message), t.line()));
   }
@@ -362,16 +464,17 @@ class Parser {
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return next;
   }
 
   private Token current() {
-    return tokens.get(current - 1);
+    return previous;
   }
 
   private void advance() {
-    if (!atEof()) current += 1;
-    // return previous();
+    if (atEof()) return;
+    previous = next;
+    next = tokens.get();
   }
 
   private boolean atEof() {
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox;
+
+// a tool's hook on a node it instrumented, see `Instrument`. an instrumented statement calls
+// `enter` every time before it runs, an instrumented expression calls `exit` with every value it
+// evaluates to. a probe that throws fails the node it's on, like an error in the node would.
+interface Probe {
+  default void enter(Interpreter interpreter) {}
+
+  default void exit(Interpreter interpreter, Object value) {}
+}
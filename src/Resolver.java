@@ -1,9 +1,12 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private enum FunctionType {
@@ -11,8 +14,55 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     FUNCTION
   }
 
+  // what a function body does that would make caching its results unsound. `calls` are the
+  // globals it calls, whose purity can only be judged at runtime by what they're bound to, and
+  // `reads` the variables from outside it that it reads, which it can only depend on if nothing
+  // ever assigns them.
+  record Effects(boolean impure, Set<String> calls, Set<String> reads) {}
+
+  private static final class FunctionEffects {
+    final int scope; // index of the function's parameter scope
+    final FunctionType enclosing;
+    boolean impure = false;
+    final Set<String> calls = new HashSet<>();
+    final Set<String> reads = new HashSet<>();
+
+    FunctionEffects(int scope, FunctionType enclosing) {
+      this.scope = scope;
+      this.enclosing = enclosing;
+    }
+  }
+
+  // what a loop does that decides which of its subexpressions can be computed once per run of
+  // the loop. `writes` are the names assigned anywhere inside, nested functions included.
+  record LoopEffects(Set<String> writes, boolean writesGlobals, boolean calls) {}
+
+  // the locals in scope where a lazy function was defined, by the index of the scope declaring
+  // them, to resolve its body in once it's parsed.
+  record Scopes(int depth, Map<String, Integer> visible) {}
+
+  private static final class OpenLoop {
+    final Set<String> writes = new HashSet<>();
+    boolean writesGlobals = false;
+    boolean calls = false;
+  }
+
   private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final List<FunctionEffects> functions = new ArrayList<>();
+  private final List<OpenLoop> loops = new ArrayList<>();
+
+  // scopes aren't materialized. every name gets an integer symbol, and `innermost[symbol]` holds
+  // the index of the innermost open scope declaring it (-1 if none), so resolving a name is one
+  // map probe and an array load no matter how deep it's nested. each declaration pushes the
+  // symbol and the index it shadowed onto `shadowed`, and closing a scope pops its declarations
+  // back off to restore the outer ones.
+  private final Map<String, Integer> symbols = new HashMap<>();
+  private final List<String> names = new ArrayList<>(); // by symbol
+  private int[] innermost = new int[64];
+  private int[] shadowed = new int[64];
+  private int shadowedCount = 0;
+  private int[] scopeStarts = new int[16]; // `shadowedCount` when each open scope began
+  private int depth = 0; // number of open scopes
   private FunctionType currentFunction = FunctionType.NONE;
 
   Resolver(Interpreter interpreter) {
@@ -41,50 +91,204 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     expr.accept(this);
   }
 
-  private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+  // the methods from here to `endFunction` are the whole of what resolution does. the visitor
+  // below calls them while walking a parsed tree, and the parser calls them directly as it builds
+  // each node when the front end runs in a single pass.
+
+  void beginScope() {
+    if (depth == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+    scopeStarts[depth++] = shadowedCount;
   }
 
-  private void endScope() {
-    scopes.pop();
+  void endScope() {
+    final var start = scopeStarts[--depth];
+    while (shadowedCount > start) {
+      shadowedCount -= 2;
+      innermost[shadowed[shadowedCount]] = shadowed[shadowedCount + 1];
+    }
   }
 
-  @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
-    // declare(stmt.name());
-    define(stmt.name()); // the book hates this one weird trick!
-    stmt.initializer().ifPresent(this::resolve);
-    return null;
+  private int symbol(String name) {
+    final var symbol = symbols.size();
+    final var existing = symbols.putIfAbsent(name, symbol);
+    if (existing != null) return existing;
+    names.add(name);
+    if (symbol == innermost.length) innermost = Arrays.copyOf(innermost, symbol * 2);
+    innermost[symbol] = -1;
+    return symbol;
   }
 
-  private void define(Token name) {
-    if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme(), true);
+  // index of the innermost open scope declaring `name`, or -1 for globals.
+  private int declaringScope(Token name) {
+    return declaringScope(name.lexeme());
   }
 
-  @Override
-  public Void visitVariableExpr(Expr.Variable expr) {
+  private int declaringScope(String name) {
+    final var symbol = symbols.get(name);
+    return symbol == null ? -1 : innermost[symbol];
+  }
+
+  void define(Token name) {
+    define(name.lexeme());
+  }
+
+  private void define(String name) {
+    if (depth == 0) return;
+    final var symbol = symbol(name);
+    final var scope = depth - 1;
+    if (innermost[symbol] == scope) return; // redeclared in the same scope
+
+    if (shadowedCount + 2 > shadowed.length) {
+      shadowed = Arrays.copyOf(shadowed, shadowed.length * 2);
+    }
+    shadowed[shadowedCount++] = symbol;
+    shadowed[shadowedCount++] = innermost[symbol];
+    innermost[symbol] = scope;
+  }
+
+  // how many scopes out from the innermost one `scope` is, -1 for globals. this is what gets
+  // cached in the nodes naming a variable.
+  private int hops(int scope) {
+    return scope < 0 ? -1 : depth - 1 - scope;
+  }
+
+  void resolveVariable(Expr.Variable expr) {
     /* the var x = x error goes here */
 
-    resolveLocal(expr, expr.name());
-    return null;
+    final var scope = declaringScope(expr.name());
+    expr.depth = hops(scope);
+    for (var enclosing : functions) {
+      if (enclosing.scope > scope) enclosing.reads.add(expr.name().lexeme());
+    }
+  }
+
+  // expects `expr.value()` to be resolved already.
+  void resolveAssignment(Expr.Assign expr) {
+    final var scope = declaringScope(expr.name());
+    expr.depth = hops(scope);
+    final var function = functions.isEmpty() ? -1 : functions.getLast().scope;
+    assigned(expr.name().lexeme(), scope, function);
+  }
+
+  // `scope` declares `name`, `function` is the parameter scope of the innermost function
+  // assigning it.
+  private void assigned(String name, int scope, int function) {
+    // writing to a variable declared outside a function is a side effect of that function
+    for (var enclosing : functions) {
+      if (enclosing.scope > scope) enclosing.impure = true;
+    }
+    if (function > scope) interpreter.capturedWrite(name);
+    interpreter.assigned(name);
+    for (var loop : loops) {
+      loop.writes.add(name);
+      loop.writesGlobals |= scope < 0;
+    }
+  }
+
+  // expects `expr.callee()` to be resolved already.
+  void resolveCall(Expr.Call expr) {
+    for (var loop : loops) loop.calls = true;
+    if (functions.isEmpty()) return;
+    final var function = functions.getLast();
+    if (expr.callee() instanceof Expr.Variable callee && declaringScope(callee.name()) < 0) {
+      function.calls.add(callee.name().lexeme());
+    } else {
+      function.impure = true; // no telling what a local or computed callee does
+    }
+  }
+
+  void resolvePrint() {
+    if (!functions.isEmpty()) functions.getLast().impure = true;
+  }
+
+  void resolveReturn(Token keyword) {
+    if (currentFunction == FunctionType.NONE) {
+      Lox.error(Diagnostics.Kind.RESOLUTION, keyword, "return outside function.");
+    }
+  }
+
+  // opens the scope holding both the parameters and the body's own declarations, parameters are
+  // defined by the caller.
+  void beginFunction() {
+    beginScope();
+    functions.add(new FunctionEffects(depth - 1, currentFunction));
+    currentFunction = FunctionType.FUNCTION;
+  }
+
+  // `expr` is null when the parser gave up on the function's body.
+  void endFunction(Expr.Function expr) {
+    final var effects = functions.removeLast();
+    if (expr != null) {
+      interpreter.effects(
+          expr,
+          new Effects(effects.impure, Set.copyOf(effects.calls), Set.copyOf(effects.reads)));
+    }
+    currentFunction = effects.enclosing;
+    endScope();
+  }
+
+  // a function whose body was skipped is taken to assign every name other than its parameters
+  // that its body mentions before a `=`, and to call something, for whatever encloses it. the
+  // scopes it can see are kept for `resolveDeferred`.
+  void deferFunction(Expr.Function expr) {
+    final var visible = new HashMap<String, Integer>();
+    for (int i = 0; i < shadowedCount; i += 2) {
+      visible.put(names.get(shadowed[i]), innermost[shadowed[i]]);
+    }
+    interpreter.deferred(expr, new Scopes(depth, visible));
+    final var params = expr.params().stream().map(Token::lexeme).toList();
+    for (var name : expr.lazy().assigned()) {
+      if (!params.contains(name)) assigned(name, declaringScope(name), depth);
+    }
+    for (var loop : loops) loop.calls = true;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
-    int hops = 0;
-    for (var scope : scopes.reversed()) {
-      if (scope.containsKey(name.lexeme())) {
-        interpreter.resolve(expr, hops);
-        return;
+  // resolves the body of a function `deferFunction` was given, and returns the function with it.
+  // meant for a resolver of its own.
+  Expr.Function resolveDeferred(Expr.Function expr, Stmt.Block body, Scopes scopes) {
+    for (int scope = 0; scope < scopes.depth(); scope++) {
+      beginScope();
+      for (var local : scopes.visible().entrySet()) {
+        if (local.getValue() == scope) define(local.getKey());
       }
-      hops++;
     }
+    final var function = new Expr.Function(expr.params(), body, null);
+    resolve(function);
+    while (depth > 0) endScope();
+    return function;
+  }
+
+  void beginLoop() {
+    loops.add(new OpenLoop());
+  }
+
+  // `stmt` is null when the parser gave up on the loop.
+  void endLoop(Stmt.While stmt) {
+    final var loop = loops.removeLast();
+    if (stmt != null) {
+      interpreter.loopEffects(
+          stmt, new LoopEffects(Set.copyOf(loop.writes), loop.writesGlobals, loop.calls));
+    }
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    // declare(stmt.name());
+    define(stmt.name()); // the book hates this one weird trick!
+    if (stmt.initializer() != null) resolve(stmt.initializer());
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    resolveVariable(expr);
+    return null;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value());
-    resolveLocal(expr, expr.name());
+    resolveAssignment(expr);
     return null;
   }
 
@@ -110,29 +314,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitIfStmt(Stmt.If stmt) {
     resolve(stmt.condition());
     resolve(stmt.thenBranch());
-    stmt.elseBranch().ifPresent(this::resolve);
+    if (stmt.elseBranch() != null) resolve(stmt.elseBranch());
     return null;
   }
 
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
+    resolvePrint();
     resolve(stmt.expression());
     return null;
   }
 
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
-    if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword(), "return outside function.");
-    }
-    stmt.value().ifPresent(this::resolve);
+    resolveReturn(stmt.keyword());
+    if (stmt.value() != null) resolve(stmt.value());
     return null;
   }
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    beginLoop();
     resolve(stmt.condition());
     resolve(stmt.body());
+    endLoop(stmt);
     return null;
   }
 
@@ -146,6 +351,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitCallExpr(Expr.Call expr) {
     resolve(expr.callee());
+    resolveCall(expr);
     for (Expr argument : expr.arguments()) {
       resolve(argument);
     }
@@ -154,17 +360,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionExpr(Expr.Function expr) {
-    final var enclosingFunction = currentFunction;
-
-    currentFunction = FunctionType.FUNCTION;
-    beginScope();
+    if (expr.body() == null) {
+      deferFunction(expr);
+      return null;
+    }
+    beginFunction();
     for (Token param : expr.params()) {
       define(param);
     }
-    resolve(expr.body());
-    endScope();
-    currentFunction = enclosingFunction;
-
+    resolve(expr.body().statements());
+    endFunction(expr);
     return null;
   }
 
@@ -174,6 +379,49 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  // fused nodes only show up after resolution, this just resolves what they were made from.
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    resolve(expr.binary());
+    return null;
+  }
+
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    resolve(expr.assign());
+    return null;
+  }
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    resolve(expr.expression());
+    return null;
+  }
+
+  @Override
+  public Void visitProbedExpr(Expr.Probed expr) {
+    resolve(expr.expression());
+    return null;
+  }
+
+  @Override
+  public Void visitProbedStmt(Stmt.Probed stmt) {
+    resolve(stmt.statement());
+    return null;
+  }
+
+  @Override
+  public Void visitHoistedStmt(Stmt.Hoisted stmt) {
+    resolve(stmt.loop());
+    return null;
+  }
+
+  @Override
+  public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+    resolve(stmt.loop());
+    return null;
+  }
+
   @Override
   public Void visitIfExpr(Expr.If expr) {
     resolve(expr.condition());
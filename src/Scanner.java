@@ -4,29 +4,46 @@ import static com.craftinginterpreters.lox.TokenKind.*;
 import static java.util.Map.entry;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 class Scanner {
   private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final Map<String, LoxString> strings = new HashMap<>(); // interned literals
   private int start = 0;
   private int current = 0;
   private int line = 1;
+  private Token scanned = null; // set by `addToken`
 
   Scanner(String source) {
     this.source = source;
   }
 
   List<Token> scanTokens() {
+    final var tokens = new ArrayList<Token>();
+    Token token;
+    do {
+      token = nextToken();
+      tokens.add(token);
+    } while (token.kind() != EOF);
+    return tokens;
+  }
+
+  // scans just far enough to produce the next token, EOF once the source runs out.
+  Token nextToken() {
     while (!atEof()) {
       // We are at the beginning of the next lexeme.
       start = current;
       scanToken();
+      if (scanned != null) {
+        final var token = scanned;
+        scanned = null;
+        return token;
+      }
     }
-    tokens.add(new Token(EOF, "", Optional.empty(), line));
-    return tokens;
+    return new Token(EOF, "", Optional.empty(), line);
   }
 
   private void scanToken() {
@@ -88,7 +105,7 @@ class Scanner {
 
     // trim the surrounding quotes.
     final var value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    addToken(STRING, strings.computeIfAbsent(value, LoxString::of));
   }
 
   private void number() {
@@ -138,7 +155,7 @@ class Scanner {
 
   private void addToken(TokenKind type, Object literal) {
     final var text = source.substring(start, current);
-    tokens.add(new Token(type, text, Optional.ofNullable(literal), line));
+    scanned = new Token(type, text, Optional.ofNullable(literal), line);
   }
 
   private boolean consumeChar(char expected) {
@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
-import java.util.Optional;
 
 public interface Stmt { // extends Grammar
   abstract <R> R accept(Visitor<R> visitor);
@@ -11,14 +10,20 @@ public interface Stmt { // extends Grammar
 
     R visitBreakStmt(Break stmt);
 
+    R visitCountedLoopStmt(CountedLoop stmt);
+
     R visitExpressionStmt(Expression stmt);
 
     R visitFunctionStmt(Function stmt);
 
+    R visitHoistedStmt(Hoisted stmt);
+
     R visitIfStmt(If stmt);
 
     R visitPrintStmt(Print stmt);
 
+    R visitProbedStmt(Probed stmt);
+
     R visitReturnStmt(Return stmt);
 
     R visitVarStmt(Var stmt);
@@ -26,64 +31,269 @@ public interface Stmt { // extends Grammar
     R visitWhileStmt(While stmt);
   }
 
-  record Block(List<Stmt> statements, boolean enclosedInLoop) implements Stmt {
+  final class Block implements Stmt {
+    private final List<Stmt> statements;
+    private final boolean enclosedInLoop;
+
+    Block(List<Stmt> statements, boolean enclosedInLoop) {
+      this.statements = statements;
+      this.enclosedInLoop = enclosedInLoop;
+    }
+
+    public List<Stmt> statements() {
+      return statements;
+    }
+
+    public boolean enclosedInLoop() {
+      return enclosedInLoop;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
   }
 
-  record Break() implements Stmt {
+  final class Break implements Stmt {
+
+    Break() {}
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBreakStmt(this);
     }
   }
 
-  record Expression(Expr expression) implements Stmt {
+  final class CountedLoop implements Stmt {
+    private final Stmt.While loop;
+    private final Expr.Compare condition;
+    private final Stmt.Block body;
+    private final Stmt.Expression step;
+
+    CountedLoop(Stmt.While loop, Expr.Compare condition, Stmt.Block body, Stmt.Expression step) {
+      this.loop = loop;
+      this.condition = condition;
+      this.body = body;
+      this.step = step;
+    }
+
+    public Stmt.While loop() {
+      return loop;
+    }
+
+    public Expr.Compare condition() {
+      return condition;
+    }
+
+    public Stmt.Block body() {
+      return body;
+    }
+
+    public Stmt.Expression step() {
+      return step;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCountedLoopStmt(this);
+    }
+  }
+
+  final class Expression implements Stmt {
+    private final Expr expression;
+
+    Expression(Expr expression) {
+      this.expression = expression;
+    }
+
+    public Expr expression() {
+      return expression;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
   }
 
-  record Function(Token name, Expr.Function definition) implements Stmt {
+  final class Function implements Stmt {
+    private final Token name;
+    private final Expr.Function definition;
+
+    Function(Token name, Expr.Function definition) {
+      this.name = name;
+      this.definition = definition;
+    }
+
+    public Token name() {
+      return name;
+    }
+
+    public Expr.Function definition() {
+      return definition;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
   }
 
-  record If(Expr condition, Stmt.Block thenBranch, Optional<Stmt.Block> elseBranch)
-      implements Stmt {
+  final class Hoisted implements Stmt {
+    private final Stmt loop;
+    private final List<Optimizer.Cell> cells;
+
+    Hoisted(Stmt loop, List<Optimizer.Cell> cells) {
+      this.loop = loop;
+      this.cells = cells;
+    }
+
+    public Stmt loop() {
+      return loop;
+    }
+
+    public List<Optimizer.Cell> cells() {
+      return cells;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitHoistedStmt(this);
+    }
+  }
+
+  final class If implements Stmt {
+    private final Expr condition;
+    private final Stmt.Block thenBranch;
+    private final Stmt.Block elseBranch;
+
+    If(Expr condition, Stmt.Block thenBranch, Stmt.Block elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    public Expr condition() {
+      return condition;
+    }
+
+    public Stmt.Block thenBranch() {
+      return thenBranch;
+    }
+
+    public Stmt.Block elseBranch() {
+      return elseBranch;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
   }
 
-  record Print(Expr expression) implements Stmt {
+  final class Print implements Stmt {
+    private final Expr expression;
+
+    Print(Expr expression) {
+      this.expression = expression;
+    }
+
+    public Expr expression() {
+      return expression;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
   }
 
-  record Return(Token keyword, Optional<Expr> value) implements Stmt {
+  final class Probed implements Stmt {
+    private final Stmt statement;
+    private final Probe probe;
+
+    Probed(Stmt statement, Probe probe) {
+      this.statement = statement;
+      this.probe = probe;
+    }
+
+    public Stmt statement() {
+      return statement;
+    }
+
+    public Probe probe() {
+      return probe;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitProbedStmt(this);
+    }
+  }
+
+  final class Return implements Stmt {
+    private final Token keyword;
+    private final Expr value;
+
+    Return(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    public Token keyword() {
+      return keyword;
+    }
+
+    public Expr value() {
+      return value;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
   }
 
-  record Var(Token name, Optional<Expr> initializer) implements Stmt {
+  final class Var implements Stmt {
+    private final Token name;
+    private final Expr initializer;
+
+    Var(Token name, Expr initializer) {
+      this.name = name;
+      this.initializer = initializer;
+    }
+
+    public Token name() {
+      return name;
+    }
+
+    public Expr initializer() {
+      return initializer;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
   }
 
-  record While(Expr condition, Stmt.Block body) implements Stmt {
+  final class While implements Stmt {
+    private final Expr condition;
+    private final Stmt.Block body;
+
+    While(Expr condition, Stmt.Block body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    public Expr condition() {
+      return condition;
+    }
+
+    public Stmt.Block body() {
+      return body;
+    }
+
     @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
@@ -0,0 +1,677 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// a hot loop compiled into a tree of closures specialized for the types its variables had when it
+// got hot. recording walks one iteration of the loop (both sides of every branch, and into the
+// functions it calls, inlined when their body is a single `return`) and gives every variable it
+// touches a slot in a frame, numbers unboxed. the observed types are propagated through the
+// assignments until they settle, so inside the trace a number stays a number and the guards only
+// run on entry: variables coming in from outside the loop must still have the types the trace was
+// specialized for, and inlined functions must still be bound to the same globals. when they don't
+// the loop stays in the interpreter, which records it again, a few times at most.
+//
+// outer variables live in the frame while the trace runs and are stored back when it exits,
+// errors included. nothing else gets to look at them in the meantime: loops that declare
+// functions, return, break or call anything that can't be inlined aren't traced.
+final class Trace {
+  static final int HOT_LOOP = 64; // iterations before a loop gets recorded
+  static final int MAX_RECORDINGS = 4;
+  private static final int MAX_INLINING = 3; // nested inlined calls
+
+  private static final class Untraceable extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Untraceable() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final Untraceable UNTRACEABLE = new Untraceable();
+
+  private enum Kind {
+    NUMBER,
+    BOOLEAN,
+    OBJECT;
+
+    static Kind of(Object value) {
+      if (value instanceof Double) return NUMBER;
+      return value instanceof Boolean ? BOOLEAN : OBJECT;
+    }
+  }
+
+  private enum Where {
+    LOCAL, // declared inside the loop, or a parameter of an inlined function
+    OUTER, // a local `hops` scopes above the loop's
+    GLOBAL
+  }
+
+  private static final class Slot {
+    final int index;
+    final Where where;
+    final int hops;
+    final String name;
+    final Globals.Slot global;
+    Kind kind = null; // until a local is first assigned
+    boolean written = false;
+    AnonFunction callee = null; // inlined from this global
+
+    Slot(int index, Where where, int hops, String name, Globals.Slot global) {
+      this.index = index;
+      this.where = where;
+      this.hops = hops;
+      this.name = name;
+      this.global = global;
+    }
+
+    Object load(Interpreter interpreter, Environment environment) {
+      return where == Where.GLOBAL
+          ? interpreter.globals().get(global, name)
+          : environment.ancestor(hops).get(name);
+    }
+
+    void store(Interpreter interpreter, Environment environment, Object value) {
+      if (where == Where.GLOBAL) {
+        interpreter.globals().assign(global, name, value);
+      } else {
+        environment.ancestor(hops).assign(name, value);
+      }
+    }
+
+    // a worker of `parallelFor` leaves writing what it shares to the interpreter, which reports it.
+    boolean writable(Interpreter interpreter, Environment environment) {
+      return interpreter.owns(where == Where.GLOBAL ? null : environment.ancestor(hops));
+    }
+
+    // nil and undefined globals look the same, assigning one is left to the interpreter.
+    boolean accepts(Object value) {
+      if (callee != null) return value == callee;
+      if (written && where == Where.GLOBAL && value == null) return false;
+      return kind == Kind.OBJECT || Kind.of(value) == kind;
+    }
+  }
+
+  static final class Frame {
+    final Interpreter interpreter;
+    final Budget budget;
+    final double[] numbers; // for slots of kind `NUMBER`
+    final Object[] objects; // everything else
+
+    Frame(Interpreter interpreter, int size) {
+      this.interpreter = interpreter;
+      this.budget = interpreter.budget();
+      this.numbers = new double[size];
+      this.objects = new Object[size];
+    }
+  }
+
+  private interface NumberCode {
+    double run(Frame frame);
+  }
+
+  private interface BooleanCode {
+    boolean test(Frame frame);
+  }
+
+  private interface ObjectCode {
+    Object run(Frame frame);
+  }
+
+  private interface Step {
+    void run(Frame frame);
+  }
+
+  // a compiled expression, one of the three is set depending on `kind`.
+  private record Code(Kind kind, NumberCode number, BooleanCode bool, ObjectCode object) {
+    static Code number(NumberCode code) {
+      return new Code(Kind.NUMBER, code, null, null);
+    }
+
+    static Code bool(BooleanCode code) {
+      return new Code(Kind.BOOLEAN, null, code, null);
+    }
+
+    static Code object(ObjectCode code) {
+      return new Code(Kind.OBJECT, null, null, code);
+    }
+
+    ObjectCode boxed() {
+      return switch (kind) {
+        case NUMBER -> {
+          final var code = number;
+          yield f -> code.run(f);
+        }
+        case BOOLEAN -> {
+          final var code = bool;
+          yield f -> code.test(f);
+        }
+        case OBJECT -> object;
+      };
+    }
+
+    BooleanCode truthy() {
+      return switch (kind) {
+        case NUMBER -> {
+          final var code = number;
+          yield f -> Trace.truthy(code.run(f));
+        }
+        case BOOLEAN -> bool;
+        case OBJECT -> {
+          final var code = object;
+          yield f -> Interpreter.isTruthy(code.run(f));
+        }
+      };
+    }
+
+    Step effect() {
+      return switch (kind) {
+        case NUMBER -> {
+          final var code = number;
+          yield f -> code.run(f);
+        }
+        case BOOLEAN -> {
+          final var code = bool;
+          yield f -> code.test(f);
+        }
+        case OBJECT -> {
+          final var code = object;
+          yield f -> code.run(f);
+        }
+      };
+    }
+  }
+
+  // what `isTruthy` says about a number: only 0 is false, -0 and NaN aren't.
+  private static boolean truthy(double number) {
+    return Double.doubleToRawLongBits(number) != 0;
+  }
+
+  private final Interpreter interpreter;
+  private final Step code; // null if the loop can't be traced
+  private final int size;
+  private final List<Slot> entries; // loaded on entry
+  private final int recordings;
+
+  private Trace(Interpreter interpreter, Step code, int size, List<Slot> entries, int recordings) {
+    this.interpreter = interpreter;
+    this.code = code;
+    this.size = size;
+    this.entries = entries;
+    this.recordings = recordings;
+  }
+
+  static Trace record(
+      Interpreter interpreter, Stmt.While loop, Environment environment, int recordings) {
+    final var recorder = new Recorder(interpreter, environment);
+    try {
+      final var code = recorder.record(loop);
+      final var entries =
+          recorder.slots.stream().filter(slot -> slot.where != Where.LOCAL).toList();
+      return new Trace(interpreter, code, recorder.slots.size(), entries, recordings);
+    } catch (Untraceable e) {
+      return new Trace(interpreter, null, 0, List.of(), recordings);
+    }
+  }
+
+  int recordings() {
+    return recordings;
+  }
+
+  // a loop that can't be traced fits anything, there's nothing to record again.
+  boolean fits(Environment environment) {
+    for (var slot : entries) {
+      if (!slot.accepts(slot.load(interpreter, environment))) return false;
+    }
+    return true;
+  }
+
+  // runs the rest of the loop, from its condition on. false if it didn't.
+  boolean run(Environment environment) {
+    if (code == null) return false;
+    final var frame = new Frame(interpreter, size);
+    for (var slot : entries) {
+      final var value = slot.load(interpreter, environment);
+      if (!slot.accepts(value)) return false;
+      if (slot.written && !slot.writable(interpreter, environment)) return false;
+      if (slot.kind == Kind.NUMBER) {
+        frame.numbers[slot.index] = (double) value;
+      } else {
+        frame.objects[slot.index] = value;
+      }
+    }
+    try {
+      code.run(frame);
+    } finally {
+      for (var slot : entries) {
+        if (!slot.written) continue;
+        final var i = slot.index;
+        final var value = slot.kind == Kind.NUMBER ? (Object) frame.numbers[i] : frame.objects[i];
+        slot.store(interpreter, environment, value);
+      }
+    }
+    return true;
+  }
+
+  // variables resolve to slots by where the resolver found them relative to the scope of the
+  // loop being recorded, `level` blocks into it. inside an inlined function they are its
+  // parameters or globals.
+  private record Context(int level, Map<String, Slot> parameters) {
+    Context nested() {
+      return new Context(level + 1, parameters);
+    }
+  }
+
+  private static final class Recorder {
+    private final Interpreter interpreter;
+    private final Environment environment;
+    private final Map<String, Slot> byKey = new HashMap<>();
+    private final List<Slot> slots = new ArrayList<>();
+    private boolean widened = false;
+    private int inlined = 0; // calls inlined so far in this pass, names their parameters
+    private int inlining = 0;
+
+    Recorder(Interpreter interpreter, Environment environment) {
+      this.interpreter = interpreter;
+      this.environment = environment;
+    }
+
+    // every pass compiles the whole loop with the kinds found so far, until one doesn't widen
+    // any of them and the code it produced is consistent. kinds only ever widen to `OBJECT`, so
+    // that takes a couple of passes.
+    Step record(Stmt.While loop) {
+      Step code;
+      do {
+        widened = false;
+        inlined = 0;
+        code = loop(loop, new Context(0, null));
+      } while (widened);
+      for (var slot : slots) {
+        if (slot.callee != null && slot.written) throw UNTRACEABLE;
+      }
+      return code;
+    }
+
+    private Slot slot(String key, Where where, int hops, String name, Globals.Slot global) {
+      var slot = byKey.get(key);
+      if (slot == null) {
+        slot = new Slot(slots.size(), where, hops, name, global);
+        if (where != Where.LOCAL) slot.kind = Kind.of(slot.load(interpreter, environment));
+        byKey.put(key, slot);
+        slots.add(slot);
+      }
+      return slot;
+    }
+
+    private Slot slot(int depth, Token token, Globals.Slot global, Context context) {
+      final var name = token.lexeme();
+      if (depth < 0) return slot("global " + name, Where.GLOBAL, 0, name, global);
+      if (context.parameters() != null) {
+        final var parameter = context.parameters().get(name);
+        if (depth != 0 || parameter == null) throw UNTRACEABLE;
+        return parameter;
+      }
+      if (depth < context.level()) return local(context.level() - depth, name);
+      final var hops = depth - context.level();
+      return slot("outer " + hops + " " + name, Where.OUTER, hops, name, null);
+    }
+
+    private Slot local(int level, String name) {
+      return slot("local " + level + " " + name, Where.LOCAL, 0, name, null);
+    }
+
+    private void widen(Slot slot, Kind kind) {
+      final var joined = slot.kind == null || slot.kind == kind ? kind : Kind.OBJECT;
+      if (joined == slot.kind) return;
+      slot.kind = joined;
+      widened = true;
+    }
+
+    private Step loop(Stmt.While loop, Context context) {
+      final var condition = expression(loop.condition(), context).truthy();
+      final var body = statement(loop.body(), context);
+      return f -> {
+        while (condition.test(f)) {
+          body.run(f);
+          f.budget.backEdge();
+        }
+      };
+    }
+
+    private Step statement(Stmt stmt, Context context) {
+      final Step step =
+          switch (stmt) {
+            case Stmt.Expression s -> expression(s.expression(), context).effect();
+            case Stmt.Print s -> {
+              final var value = expression(s.expression(), context).boxed();
+              yield f -> f.interpreter.print(value.run(f));
+            }
+            case Stmt.Var s -> {
+              final var value =
+                  s.initializer() == null ? constant(null) : expression(s.initializer(), context);
+              final var slot = local(context.level(), s.name().lexeme());
+              widen(slot, value.kind());
+              yield store(slot, value).effect();
+            }
+            case Stmt.Block s -> block(s, context.nested());
+            case Stmt.If s -> {
+              final var condition = expression(s.condition(), context).truthy();
+              final var thenBranch = statement(s.thenBranch(), context);
+              if (s.elseBranch() == null) {
+                yield f -> {
+                  if (condition.test(f)) thenBranch.run(f);
+                };
+              }
+              final var otherwise = statement(s.elseBranch(), context);
+              yield f -> {
+                if (condition.test(f)) {
+                  thenBranch.run(f);
+                } else {
+                  otherwise.run(f);
+                }
+              };
+            }
+            case Stmt.While s -> loop(s, context);
+            case Stmt.CountedLoop s -> loop(s.loop(), context);
+            case Stmt.Hoisted s -> statement(s.loop(), context);
+            default -> throw UNTRACEABLE;
+          };
+      return f -> {
+        f.budget.statements++;
+        step.run(f);
+      };
+    }
+
+    private Step block(Stmt.Block block, Context context) {
+      final var steps =
+          block.statements().stream().map(s -> statement(s, context)).toArray(Step[]::new);
+      return f -> {
+        for (var step : steps) step.run(f);
+      };
+    }
+
+    // the optimizer's fused nodes go back to what they were fused from, the trace specializes
+    // those better.
+    private Code expression(Expr expr, Context context) {
+      return switch (expr) {
+        case Expr.Literal e -> constant(e.value());
+        case Expr.Grouping e -> expression(e.expression(), context);
+        case Expr.Invariant e -> expression(e.expression(), context);
+        case Expr.Compare e -> expression(e.binary(), context);
+        case Expr.Increment e -> expression(e.assign(), context);
+        case Expr.Variable e -> read(e, slot(e.depth, e.name(), e.global, context));
+        case Expr.Assign e -> assign(e, context);
+        case Expr.Unary e -> unary(e, context);
+        case Expr.Binary e -> binary(e, context);
+        case Expr.Logical e -> logical(e, context);
+        case Expr.If e -> conditional(e, context);
+        case Expr.Call e -> call(e, context);
+        default -> throw UNTRACEABLE;
+      };
+    }
+
+    private static Code constant(Object value) {
+      return switch (value) {
+        case Double number -> {
+          final double n = number;
+          yield Code.number(f -> n);
+        }
+        case Boolean bool -> {
+          final boolean b = bool;
+          yield Code.bool(f -> b);
+        }
+        case null, default -> Code.object(f -> value);
+      };
+    }
+
+    private static Code read(Expr.Variable expr, Slot slot) {
+      final var i = slot.index;
+      return switch (slot.kind) {
+        case NUMBER -> Code.number(f -> f.numbers[i]);
+        case BOOLEAN -> Code.bool(f -> (Boolean) f.objects[i]);
+        case OBJECT ->
+            Code.object(
+                f -> {
+                  final var value = f.objects[i];
+                  if (value == null) throw f.interpreter.unassigned(expr);
+                  return value;
+                });
+      };
+    }
+
+    private Code assign(Expr.Assign expr, Context context) {
+      final var value = expression(expr.value(), context);
+      final var slot = slot(expr.depth, expr.name(), expr.global, context);
+      if (slot.where == Where.GLOBAL && slot.load(interpreter, environment) == null) {
+        throw UNTRACEABLE;
+      }
+      slot.written = true;
+      widen(slot, value.kind());
+      return store(slot, value);
+    }
+
+    // `slot` has been widened to fit `value` already.
+    private static Code store(Slot slot, Code value) {
+      final var i = slot.index;
+      return switch (slot.kind) {
+        case NUMBER -> {
+          final var code = value.number();
+          yield Code.number(f -> f.numbers[i] = code.run(f));
+        }
+        case BOOLEAN -> {
+          final var code = value.bool();
+          yield Code.bool(
+              f -> {
+                final var result = code.test(f);
+                f.objects[i] = result;
+                return result;
+              });
+        }
+        case OBJECT -> {
+          final var code = value.boxed();
+          yield Code.object(f -> f.objects[i] = code.run(f));
+        }
+      };
+    }
+
+    private Code unary(Expr.Unary expr, Context context) {
+      final var operand = expression(expr.right(), context);
+      final var kind = expr.operator().kind();
+      if (kind == TokenKind.MINUS && operand.kind() == Kind.NUMBER) {
+        final var code = operand.number();
+        return Code.number(f -> -code.run(f));
+      }
+      if (kind == TokenKind.BANG && operand.kind() == Kind.BOOLEAN) {
+        final var code = operand.bool();
+        return Code.bool(f -> !code.test(f));
+      }
+      final var code = operand.boxed();
+      return Code.object(f -> f.interpreter.unary(expr, code.run(f)));
+    }
+
+    // anything but two numbers goes through the interpreter's operator, errors and all.
+    private Code binary(Expr.Binary expr, Context context) {
+      final var left = expression(expr.left(), context);
+      final var right = expression(expr.right(), context);
+      final var kind = expr.operator().kind();
+      if (left.kind() == Kind.NUMBER && right.kind() == Kind.NUMBER) {
+        final var a = left.number();
+        final var b = right.number();
+        final var code =
+            switch (kind) {
+              case PLUS -> Code.number(f -> a.run(f) + b.run(f));
+              case MINUS -> Code.number(f -> a.run(f) - b.run(f));
+              case STAR -> Code.number(f -> a.run(f) * b.run(f));
+              case SLASH -> Code.number(f -> a.run(f) / b.run(f));
+              case GREATER -> Code.bool(f -> a.run(f) > b.run(f));
+              case GREATER_EQUAL -> Code.bool(f -> a.run(f) >= b.run(f));
+              case LESS -> Code.bool(f -> a.run(f) < b.run(f));
+              case LESS_EQUAL -> Code.bool(f -> a.run(f) <= b.run(f));
+              case EQUAL_EQUAL -> Code.bool(f -> same(a.run(f), b.run(f)));
+              case BANG_EQUAL -> Code.bool(f -> !same(a.run(f), b.run(f)));
+              default -> null;
+            };
+        if (code != null) return code;
+      }
+      final var a = left.boxed();
+      final var b = right.boxed();
+      return switch (kind) {
+        case EQUAL_EQUAL -> Code.bool(f -> Interpreter.isEqual(a.run(f), b.run(f)));
+        case BANG_EQUAL -> Code.bool(f -> !Interpreter.isEqual(a.run(f), b.run(f)));
+        case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL ->
+            Code.bool(f -> (Boolean) f.interpreter.binary(expr, a.run(f), b.run(f)));
+        default -> Code.object(f -> f.interpreter.binary(expr, a.run(f), b.run(f)));
+      };
+    }
+
+    // `==` on boxed numbers, NaN equals itself and -0 doesn't equal 0.
+    private static boolean same(double a, double b) {
+      return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    private Code logical(Expr.Logical expr, Context context) {
+      final var left = expression(expr.left(), context);
+      final var right = expression(expr.right(), context);
+      final var or = expr.operator().kind() == TokenKind.OR; // else `and`
+      if (left.kind() == Kind.NUMBER && right.kind() == Kind.NUMBER) {
+        final var a = left.number();
+        final var b = right.number();
+        return Code.number(
+            f -> {
+              final var value = a.run(f);
+              return truthy(value) == or ? value : b.run(f);
+            });
+      }
+      if (left.kind() == Kind.BOOLEAN && right.kind() == Kind.BOOLEAN) {
+        final var a = left.bool();
+        final var b = right.bool();
+        return Code.bool(or ? f -> a.test(f) || b.test(f) : f -> a.test(f) && b.test(f));
+      }
+      final var a = left.boxed();
+      final var b = right.boxed();
+      return Code.object(
+          f -> {
+            final var value = a.run(f);
+            return Interpreter.isTruthy(value) == or ? value : b.run(f);
+          });
+    }
+
+    private Code conditional(Expr.If expr, Context context) {
+      final var condition = expression(expr.condition(), context).truthy();
+      final var first = expression(expr.first(), context);
+      final var second = expression(expr.second(), context);
+      if (first.kind() == Kind.NUMBER && second.kind() == Kind.NUMBER) {
+        final var a = first.number();
+        final var b = second.number();
+        return Code.number(f -> condition.test(f) ? a.run(f) : b.run(f));
+      }
+      if (first.kind() == Kind.BOOLEAN && second.kind() == Kind.BOOLEAN) {
+        final var a = first.bool();
+        final var b = second.bool();
+        return Code.bool(f -> condition.test(f) ? a.test(f) : b.test(f));
+      }
+      final var a = first.boxed();
+      final var b = second.boxed();
+      return Code.object(f -> condition.test(f) ? a.run(f) : b.run(f));
+    }
+
+    // only global functions declared at the top level whose body is a single `return` are
+    // inlined. their parameters get fresh slots at every call site, and everything else they
+    // can refer to is a global.
+    private Code call(Expr.Call expr, Context context) {
+      if (!(expr.callee() instanceof Expr.Variable callee)
+          || callee.depth >= 0
+          || inlining == MAX_INLINING) {
+        throw UNTRACEABLE;
+      }
+      final var slot = slot(callee.depth, callee.name(), callee.global, context);
+      if (slot.callee == null) {
+        if (!(slot.load(interpreter, environment) instanceof AnonFunction function)) {
+          throw UNTRACEABLE;
+        }
+        slot.callee = function;
+      }
+      final var definition = slot.callee.definition(interpreter);
+      if (definition == null) throw UNTRACEABLE;
+      final var params = definition.params();
+      final var body = definition.body().statements();
+      if (slot.callee.closure() != null
+          || params.size() != expr.arguments().size()
+          || body.size() != 1
+          || !(body.getFirst() instanceof Stmt.Return result)
+          || result.value() == null) {
+        throw UNTRACEABLE;
+      }
+
+      final var site = inlined++;
+      final var parameters = new HashMap<String, Slot>();
+      final var arguments = new Step[params.size()];
+      for (int i = 0; i < arguments.length; i++) {
+        final var argument = expression(expr.arguments().get(i), context);
+        final var parameter = slot("inline " + site + " " + i, Where.LOCAL, 0, null, null);
+        widen(parameter, argument.kind());
+        arguments[i] = store(parameter, argument).effect();
+        parameters.put(params.get(i).lexeme(), parameter);
+      }
+      final Code value;
+      inlining++;
+      try {
+        value = expression(result.value(), new Context(0, parameters));
+      } finally {
+        inlining--;
+      }
+
+      return switch (value.kind()) {
+        case NUMBER -> {
+          final var code = value.number();
+          yield Code.number(
+              f -> {
+                enter(f, arguments);
+                try {
+                  return code.run(f);
+                } catch (RuntimeException e) {
+                  throw failed(f, expr, e);
+                }
+              });
+        }
+        case BOOLEAN -> {
+          final var code = value.bool();
+          yield Code.bool(
+              f -> {
+                enter(f, arguments);
+                try {
+                  return code.test(f);
+                } catch (RuntimeException e) {
+                  throw failed(f, expr, e);
+                }
+              });
+        }
+        case OBJECT -> {
+          final var code = value.object();
+          yield Code.object(
+              f -> {
+                enter(f, arguments);
+                try {
+                  return code.run(f);
+                } catch (RuntimeException e) {
+                  throw failed(f, expr, e);
+                }
+              });
+        }
+      };
+    }
+
+    // what a call does before running the body: arguments, then the budget, and the `return`.
+    private static void enter(Frame f, Step[] arguments) {
+      for (var argument : arguments) argument.run(f);
+      f.budget.call();
+      f.budget.statements++;
+    }
+
+    private static RuntimeException failed(Frame f, Expr.Call expr, RuntimeException e) {
+      return e instanceof Budget.Exceeded ? e : f.interpreter.callFailed(expr, e);
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// runs after the optimizer and works out what expressions are known to evaluate to, if they
+// evaluate at all: arithmetic is always a number, comparisons always a boolean, and a local is
+// whatever every value stored in it is. stores can read other locals, so locals start out as
+// nothing and are widened until they stop changing. parameters, globals, functions and locals a
+// skipped body might assign can be anything.
+//
+// what the interpreter gets out of it is cached in `Expr.Binary.operands` and
+// `Expr.Unary.operand`: the type the operands always have, which lets it skip their checks and
+// keep arithmetic on numbers unboxed. the locals are scoped the way `Resolver` scopes them and
+// found by the distance it cached in the nodes.
+final class Types implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  enum Type {
+    NUMBER,
+    STRING,
+    BOOLEAN,
+    ANY;
+
+    // null is the type of what hasn't been seen to evaluate to anything yet.
+    static Type join(Type a, Type b) {
+      if (a == null) return b;
+      if (b == null) return a;
+      return a == b ? a : ANY;
+    }
+  }
+
+  private static final class Local {
+    final List<Expr> stores = new ArrayList<>();
+    boolean any = false; // stored something that isn't in `stores`
+    Type type = null;
+  }
+
+  private final List<Map<String, Local>> scopes = new ArrayList<>();
+  private final List<Local> locals = new ArrayList<>();
+  private final Map<Expr, Local> references = new IdentityHashMap<>();
+  private final List<Expr.Binary> binaries = new ArrayList<>();
+  private final List<Expr.Unary> unaries = new ArrayList<>();
+
+  private Types() {}
+
+  static void infer(List<Stmt> statements) {
+    final var types = new Types();
+    for (var statement : statements) statement.accept(types);
+    types.solve();
+  }
+
+  // a function parsed on its own, what it reads from outside can be anything.
+  static void infer(Expr.Function function) {
+    final var types = new Types();
+    function.accept(types);
+    types.solve();
+  }
+
+  private void solve() {
+    for (var changed = true; changed; ) {
+      changed = false;
+      for (var local : locals) {
+        var type = local.any ? Type.ANY : local.type;
+        for (var store : local.stores) type = Type.join(type, type(store));
+        if (type != local.type) {
+          local.type = type;
+          changed = true;
+        }
+      }
+    }
+    for (var binary : binaries) {
+      final var left = type(binary.left());
+      binary.operands = left != null && left == type(binary.right()) ? left : Type.ANY;
+    }
+    for (var unary : unaries) {
+      final var operand = type(unary.right());
+      unary.operand = operand != null ? operand : Type.ANY;
+    }
+  }
+
+  private Type type(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal ->
+          switch (literal.value()) {
+            case Double _number -> Type.NUMBER;
+            case LoxString _string -> Type.STRING;
+            case Boolean _bool -> Type.BOOLEAN;
+            case null, default -> Type.ANY;
+          };
+      case Expr.Grouping grouping -> type(grouping.expression());
+      case Expr.Variable variable -> local(variable);
+      case Expr.Assign assign -> type(assign.value());
+      case Expr.Unary unary ->
+          switch (unary.operator().kind()) {
+            case MINUS -> Type.NUMBER;
+            case BANG -> Type.BOOLEAN;
+            default -> Type.ANY;
+          };
+      case Expr.Binary binary -> type(binary);
+      case Expr.Logical logical -> Type.join(type(logical.left()), type(logical.right()));
+      case Expr.If conditional -> Type.join(type(conditional.first()), type(conditional.second()));
+      case Expr.Increment _increment -> Type.NUMBER;
+      case Expr.Compare _compare -> Type.BOOLEAN;
+      case Expr.Invariant invariant -> type(invariant.expression());
+      case Expr.Probed probed -> type(probed.expression());
+      default -> Type.ANY; // calls and functions
+    };
+  }
+
+  // an operator that got operands of the wrong types doesn't evaluate to anything, so `+` is a
+  // number as soon as either side is.
+  private Type type(Expr.Binary binary) {
+    return switch (binary.operator().kind()) {
+      case MINUS, STAR, SLASH -> Type.NUMBER;
+      case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> Type.BOOLEAN;
+      case PLUS -> {
+        final var left = type(binary.left());
+        final var right = type(binary.right());
+        if (left == Type.NUMBER || right == Type.NUMBER) yield Type.NUMBER;
+        if (left == Type.STRING || right == Type.STRING) yield Type.STRING;
+        yield left == null || right == null ? null : Type.ANY;
+      }
+      default -> Type.ANY;
+    };
+  }
+
+  private Type local(Expr reference) {
+    final var local = references.get(reference);
+    return local != null ? local.type : Type.ANY;
+  }
+
+  private void beginScope() {
+    scopes.add(new HashMap<>());
+  }
+
+  private void endScope() {
+    scopes.removeLast();
+  }
+
+  // null for globals.
+  private Local define(String name) {
+    if (scopes.isEmpty()) return null;
+    return scopes.getLast()
+        .computeIfAbsent( // redeclaring in the same scope reuses the variable
+            name,
+            _name -> {
+              final var local = new Local();
+              locals.add(local);
+              return local;
+            });
+  }
+
+  private void reference(Expr expr, String name, int depth) {
+    final var scope = scopes.size() - 1 - depth;
+    if (depth < 0 || scope < 0) return;
+    final var local = scopes.get(scope).get(name);
+    if (local != null) references.put(expr, local);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (var statement : stmt.statements()) statement.accept(this);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+    return stmt.loop().accept(this);
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    return stmt.expression().accept(this);
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    final var local = define(stmt.name().lexeme());
+    if (local != null) local.any = true;
+    return stmt.definition().accept(this);
+  }
+
+  @Override
+  public Void visitProbedStmt(Stmt.Probed stmt) {
+    return stmt.statement().accept(this);
+  }
+
+  @Override
+  public Void visitHoistedStmt(Stmt.Hoisted stmt) {
+    return stmt.loop().accept(this);
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    stmt.condition().accept(this);
+    stmt.thenBranch().accept(this);
+    if (stmt.elseBranch() != null) stmt.elseBranch().accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    return stmt.expression().accept(this);
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value() != null) stmt.value().accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    final var local = define(stmt.name().lexeme());
+    final var initializer = stmt.initializer();
+    if (local != null && initializer != null) local.stores.add(initializer);
+    if (local != null && initializer == null) local.any = true; // nil
+    if (initializer != null) initializer.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    stmt.condition().accept(this);
+    return stmt.body().accept(this);
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    expr.value().accept(this);
+    reference(expr, expr.name().lexeme(), expr.depth);
+    final var local = references.get(expr);
+    if (local != null) local.stores.add(expr.value());
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    expr.left().accept(this);
+    expr.right().accept(this);
+    binaries.add(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    expr.callee().accept(this);
+    for (var argument : expr.arguments()) argument.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    return expr.binary().accept(this);
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    if (expr.body() == null) {
+      // whatever a skipped body assigns is written by something we can't see
+      for (var name : expr.lazy().assigned()) {
+        for (var scope : scopes.reversed()) {
+          final var local = scope.get(name);
+          if (local != null) {
+            local.any = true;
+            break;
+          }
+        }
+      }
+      return null;
+    }
+    beginScope();
+    for (var param : expr.params()) define(param.lexeme()).any = true;
+    for (var statement : expr.body().statements()) statement.accept(this);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    return expr.expression().accept(this);
+  }
+
+  @Override
+  public Void visitIfExpr(Expr.If expr) {
+    expr.condition().accept(this);
+    expr.first().accept(this);
+    return expr.second().accept(this);
+  }
+
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    return expr.assign().accept(this);
+  }
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    return expr.expression().accept(this);
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    expr.left().accept(this);
+    return expr.right().accept(this);
+  }
+
+  @Override
+  public Void visitProbedExpr(Expr.Probed expr) {
+    return expr.expression().accept(this);
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    expr.right().accept(this);
+    unaries.add(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    reference(expr, expr.name().lexeme(), expr.depth);
+    return null;
+  }
+}